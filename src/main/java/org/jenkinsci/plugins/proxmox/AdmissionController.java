@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the rollbacks, starts and migrations which run at the same time on a Proxmox node and on a storage,
+ * so a boot storm does not saturate the disks. Operations beyond the limits wait in the order they arrived;
+ * a waiting operation is only held back by earlier operations on the same node or storage. Waiting agents
+ * are told their position in the queue. A storage of a node counts separately on every node, a shared storage
+ * counts once for the whole cluster.
+ */
+public class AdmissionController {
+
+    private int maxPerNode;
+    private int maxPerStorage;
+
+    private final Map<String, Integer> running = new HashMap<String, Integer>();
+    private final List<Waiter> waiters = new LinkedList<Waiter>();
+    private volatile Set<String> sharedStorages = Collections.emptySet();
+
+    /**
+     * @param maxPerNode     concurrent operations per Proxmox node, 0 for no limit.
+     * @param maxPerStorage  concurrent operations per storage of a node, 0 for no limit.
+     */
+    public void configure(int maxPerNode, int maxPerStorage) {
+        synchronized (this) {
+            this.maxPerNode = maxPerNode;
+            this.maxPerStorage = maxPerStorage;
+        }
+        dispatch();
+    }
+
+    /**
+     * @param sharedStorages the storages every node accesses alike, like Ceph or NFS.
+     */
+    public void setSharedStorages(Set<String> sharedStorages) {
+        this.sharedStorages = Collections.unmodifiableSet(new HashSet<String>(sharedStorages));
+    }
+
+    /**
+     * @param operation a short description of the operation for the log, e.g. {@code rollback}.
+     * @param storages  the storages holding the disks of the guest.
+     * @return a future which is completed with the permit once the operation may run. The permit has to be
+     *         closed when the operation is done; cancel the future to leave the queue.
+     */
+    public CompletableFuture<Permit> acquireAsync(
+            String operation, String node, Collection<String> storages, TaskListener listener) {
+        Set<String> keys = new LinkedHashSet<String>();
+        keys.add("node:" + node);
+        Set<String> shared = sharedStorages;
+        for (String storage : storages) {
+            keys.add(shared.contains(storage) ? "storage:" + storage : "storage:" + node + "/" + storage);
+        }
+        Waiter waiter = new Waiter(operation, node, keys, listener);
+        synchronized (this) {
+            waiters.add(waiter);
+        }
+        dispatch();
+        return waiter.future;
+    }
+
+    /**
+     * Waits for a permit, see {@link #acquireAsync}. If the wait is interrupted, the operation leaves the queue.
+     */
+    public Permit acquire(String operation, String node, Collection<String> storages, TaskListener listener)
+            throws InterruptedException {
+        CompletableFuture<Permit> future = acquireAsync(operation, node, storages, listener);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            if (!future.cancel(false)) {
+                future.join().close();
+            }
+            dispatch();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public synchronized int getQueueLength() {
+        return waiters.size();
+    }
+
+    public synchronized int getRunning(String node) {
+        Integer count = running.get("node:" + node);
+        return count == null ? 0 : count;
+    }
+
+    private boolean hasCapacity(Set<String> keys) {
+        for (String key : keys) {
+            int limit = key.startsWith("node:") ? maxPerNode : maxPerStorage;
+            Integer count = running.get(key);
+            if (limit > 0 && count != null && count >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dispatch() {
+        List<Waiter> admitted = new ArrayList<Waiter>();
+        List<Waiter> moved = new ArrayList<Waiter>();
+        synchronized (this) {
+            // keys of earlier waiters which are still waiting, to keep the order per node and storage
+            Map<String, Integer> ahead = new HashMap<String, Integer>();
+            Iterator<Waiter> it = waiters.iterator();
+            while (it.hasNext()) {
+                Waiter waiter = it.next();
+                if (waiter.future.isDone()) {
+                    it.remove();
+                    continue;
+                }
+                int position = 1;
+                for (String key : waiter.keys) {
+                    Integer count = ahead.get(key);
+                    if (count != null) {
+                        position = Math.max(position, count + 1);
+                    }
+                }
+                if (position == 1 && hasCapacity(waiter.keys)) {
+                    it.remove();
+                    for (String key : waiter.keys) {
+                        running.merge(key, 1, Integer::sum);
+                    }
+                    admitted.add(waiter);
+                    continue;
+                }
+                for (String key : waiter.keys) {
+                    ahead.merge(key, 1, Integer::sum);
+                }
+                if (waiter.position != position) {
+                    waiter.position = position;
+                    moved.add(waiter);
+                }
+            }
+        }
+
+        for (Waiter waiter : moved) {
+            waiter.listener
+                    .getLogger()
+                    .println("Waiting to " + waiter.operation + " on node \"" + waiter.node + "\", position "
+                            + waiter.position + " in the queue");
+        }
+        for (Waiter waiter : admitted) {
+            Permit permit = new Permit(waiter.keys);
+            if (!waiter.future.complete(permit)) {
+                // cancelled while being admitted
+                permit.close();
+            }
+        }
+    }
+
+    private void release(Set<String> keys) {
+        synchronized (this) {
+            for (String key : keys) {
+                running.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Allows one operation to run. Closing it lets the next operation in.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Set<String> keys;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Permit(Set<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(keys);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        final String operation;
+        final String node;
+        final Set<String> keys;
+        final TaskListener listener;
+        final CompletableFuture<Permit> future = new CompletableFuture<Permit>();
+        int position;
+
+        Waiter(String operation, String node, Set<String> keys, TaskListener listener) {
+            this.operation = operation;
+            this.node = node;
+            this.keys = keys;
+            this.listener = listener;
+        }
+    }
+}
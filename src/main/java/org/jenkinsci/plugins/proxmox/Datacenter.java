@@ -2,24 +2,37 @@ package org.jenkinsci.plugins.proxmox;
 
 import hudson.Extension;
 import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.security.auth.login.LoginException;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.proxmox.pve2api.ClusterInventory;
+import org.jenkinsci.plugins.proxmox.pve2api.ClusterResource;
 import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+import org.jenkinsci.plugins.proxmox.pve2api.GuestType;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.verb.POST;
@@ -36,7 +49,39 @@ public class Datacenter extends Cloud {
     private final String realm;
     private final Secret password;
     private final Boolean ignoreSSL;
+    private String tokenId;
+    private Secret tokenSecret;
+    private int maxConcurrentRequests;
+    private int requestsPerSecond;
+    private int maxConcurrentStartsPerNode;
+    private int maxConcurrentStartsPerStorage;
+    private Integer connectTimeoutSeconds;
+    private Integer readTimeoutSeconds;
+    private Integer maxRetries;
+    private String additionalHostnames;
+    private boolean discoverEndpoints;
+    private List<VirtualMachineTemplate> templates;
     private transient Connector pveConnector;
+    private transient ClusterInventory inventory;
+    private transient AdmissionController admissionController;
+    private transient long lastEndpointDiscovery;
+    private transient long lastStorageRefresh;
+
+    /**
+     * How often the nodes of the cluster are discovered again, see {@link #setDiscoverEndpoints(boolean)}.
+     */
+    static final long ENDPOINT_DISCOVERY_PERIOD_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Serializes the allocation of new VM ids, as the next free id is only reserved once the clone exists.
+     */
+    private static final Object CLONE_LOCK = new Object();
+
+    /**
+     * Datacenters by description. Rebuilt after the configuration of Jenkins is saved, or when a datacenter is
+     * created or missing.
+     */
+    private static volatile Map<String, Datacenter> descriptionIndex;
 
     @DataBoundConstructor
     public Datacenter(String hostname, String username, String realm, Secret password, Boolean ignoreSSL) {
@@ -46,15 +91,174 @@ public class Datacenter extends Cloud {
         this.realm = realm;
         this.password = password;
         this.ignoreSSL = ignoreSSL;
+        this.templates = new ArrayList<VirtualMachineTemplate>();
         this.pveConnector = null;
+        descriptionIndex = null;
+    }
+
+    private Object readResolve() {
+        if (templates == null) {
+            templates = new ArrayList<VirtualMachineTemplate>();
+        }
+        descriptionIndex = null;
+        return this;
+    }
+
+    /**
+     * @return the configured datacenter with the given description, or null.
+     */
+    public static Datacenter getByDescription(String datacenterDescription) {
+        if (datacenterDescription == null || datacenterDescription.isEmpty()) {
+            return null;
+        }
+        Map<String, Datacenter> index = descriptionIndex;
+        Datacenter datacenter = index == null ? null : index.get(datacenterDescription);
+        if (datacenter == null) {
+            index = new HashMap<String, Datacenter>();
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (cloud instanceof Datacenter) {
+                    index.putIfAbsent(((Datacenter) cloud).getDatacenterDescription(), (Datacenter) cloud);
+                }
+            }
+            descriptionIndex = index;
+            datacenter = index.get(datacenterDescription);
+        }
+        return datacenter;
+    }
+
+    /**
+     * Clouds are replaced or removed by saving the configuration of Jenkins.
+     */
+    @Extension
+    public static final class DescriptionIndexInvalidation extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins) {
+                descriptionIndex = null;
+            }
+        }
     }
 
     public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-        return Collections.emptySet();
+        final VirtualMachineTemplate template = getTemplate(label);
+        if (template == null) {
+            return Collections.emptySet();
+        }
+
+        List<NodeProvisioner.PlannedNode> plannedNodes = new ArrayList<NodeProvisioner.PlannedNode>();
+        int capacity = template.getRemainingCapacity(getDatacenterDescription());
+        while (excessWorkload > 0 && capacity > 0) {
+            template.getPendingCount().incrementAndGet();
+            plannedNodes.add(new NodeProvisioner.PlannedNode(
+                    template.getNamePrefix() + " (template " + template.getTemplateVirtualMachineId() + ")",
+                    Computer.threadPoolForRemoting.submit(() -> {
+                        try {
+                            return provisionAgent(template);
+                        } finally {
+                            template.getPendingCount().decrementAndGet();
+                        }
+                    }),
+                    template.getNumExecutors()));
+            excessWorkload -= template.getNumExecutors();
+            capacity--;
+        }
+        return plannedNodes;
     }
 
     public boolean canProvision(Label label) {
-        return false;
+        return getTemplate(label) != null;
+    }
+
+    public VirtualMachineTemplate getTemplate(Label label) {
+        for (VirtualMachineTemplate template : templates) {
+            if (template.matches(label)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Provisions agents ahead of demand to fill the warm pool of a template.
+     */
+    public void provisionWarmPool(final VirtualMachineTemplate template, int count) {
+        for (int i = 0; i < count; i++) {
+            template.getPendingCount().incrementAndGet();
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    provisionAgent(template);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to provision warm pool agent from template "
+                            + template.getTemplateVirtualMachineId(), e);
+                } finally {
+                    template.getPendingCount().decrementAndGet();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Creates a linked clone of the template and registers it as a new agent.
+     * The agent is started and connected by its {@link VirtualMachineLauncher}.
+     */
+    private Node provisionAgent(VirtualMachineTemplate template)
+            throws IOException, InterruptedException, Descriptor.FormException, LoginException {
+        Connector pve = proxmoxInstance();
+        String node = template.getDatacenterNode();
+        Integer vmid;
+        String name;
+        String taskId;
+        synchronized (CLONE_LOCK) {
+            vmid = pve.getNextVmId();
+            name = template.getNamePrefix() + "-" + vmid;
+            LOGGER.log(Level.INFO, "Cloning template " + template.getTemplateVirtualMachineId() + " to " + vmid
+                    + " for agent " + name);
+            taskId = pve.cloneQemuMachine(node, template.getTemplateVirtualMachineId(), vmid, name, false);
+        }
+        kong.unirest.json.JSONObject taskStatus = pve.waitForTaskToFinish(node, taskId);
+        if (!"OK".equals(taskStatus.optString("exitstatus"))) {
+            throw new IOException("Cloning template " + template.getTemplateVirtualMachineId() + " failed: "
+                    + taskStatus.toString());
+        }
+
+        boolean registered = false;
+        try {
+            Map<String, String> config = new HashMap<String, String>();
+            config.put("description", "Jenkins agent " + name);
+            pve.updateQemuMachineConfig(node, vmid, config);
+
+            ProvisionedVirtualMachineSlave slave =
+                    new ProvisionedVirtualMachineSlave(name, getDatacenterDescription(), template, vmid);
+            Jenkins.get().addNode(slave);
+            registered = true;
+            return slave;
+        } finally {
+            if (!registered) {
+                destroyClone(pve, node, vmid);
+            }
+        }
+    }
+
+    /**
+     * Destroys a clone which could not be registered as an agent, so it is not left behind on the cluster.
+     */
+    private static void destroyClone(Connector pve, String node, Integer vmid) {
+        LOGGER.log(Level.WARNING, "Registering the agent of clone " + vmid + " failed, destroying the clone");
+        try {
+            pve.waitForTaskToFinish(node, pve.destroyQemuMachine(node, vmid));
+        } catch (LoginException | InterruptedException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to destroy clone " + vmid + " on node " + node, e);
+        }
+    }
+
+    public List<VirtualMachineTemplate> getTemplates() {
+        return templates;
+    }
+
+    @DataBoundSetter
+    public void setTemplates(List<VirtualMachineTemplate> templates) {
+        this.templates = templates == null ? new ArrayList<VirtualMachineTemplate>() : templates;
     }
 
     public String getHostname() {
@@ -77,6 +281,181 @@ public class Datacenter extends Cloud {
         return ignoreSSL;
     }
 
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    /**
+     * @param tokenId the name of an API token of the user. If set, the token is used instead of the password.
+     */
+    @DataBoundSetter
+    public void setTokenId(String tokenId) {
+        this.tokenId = Util.fixEmptyAndTrim(tokenId);
+    }
+
+    public Secret getTokenSecret() {
+        return tokenSecret;
+    }
+
+    @DataBoundSetter
+    public void setTokenSecret(Secret tokenSecret) {
+        this.tokenSecret = tokenSecret;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * @param maxConcurrentRequests the maximum number of requests in flight to the API, 0 for no limit.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = Math.max(maxConcurrentRequests, 0);
+    }
+
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @param requestsPerSecond the maximum rate of requests to the API, 0 for no limit.
+     */
+    @DataBoundSetter
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = Math.max(requestsPerSecond, 0);
+    }
+
+    public int getMaxConcurrentStartsPerNode() {
+        return maxConcurrentStartsPerNode;
+    }
+
+    /**
+     * @param maxConcurrentStartsPerNode the maximum number of rollbacks, starts and migrations running at the
+     *                                   same time on a Proxmox node, 0 for no limit.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentStartsPerNode(int maxConcurrentStartsPerNode) {
+        this.maxConcurrentStartsPerNode = Math.max(maxConcurrentStartsPerNode, 0);
+    }
+
+    public int getMaxConcurrentStartsPerStorage() {
+        return maxConcurrentStartsPerStorage;
+    }
+
+    /**
+     * @param maxConcurrentStartsPerStorage the same limit per storage of a node, 0 for no limit.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentStartsPerStorage(int maxConcurrentStartsPerStorage) {
+        this.maxConcurrentStartsPerStorage = Math.max(maxConcurrentStartsPerStorage, 0);
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds == null ? Connector.DEFAULT_CONNECT_TIMEOUT_MS / 1000 : connectTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = Math.max(connectTimeoutSeconds, 1);
+    }
+
+    public int getReadTimeoutSeconds() {
+        return readTimeoutSeconds == null ? Connector.DEFAULT_READ_TIMEOUT_MS / 1000 : readTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+        this.readTimeoutSeconds = Math.max(readTimeoutSeconds, 1);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries == null ? Connector.DEFAULT_MAX_RETRIES : maxRetries;
+    }
+
+    /**
+     * @param maxRetries how often a request is retried after a connection error, a timeout or a gateway error.
+     */
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(maxRetries, 0);
+    }
+
+    public String getAdditionalHostnames() {
+        return additionalHostnames;
+    }
+
+    /**
+     * @param additionalHostnames further nodes of the cluster to send API requests to, separated by whitespace
+     *                            or commas, in the format of the hostname.
+     */
+    @DataBoundSetter
+    public void setAdditionalHostnames(String additionalHostnames) {
+        this.additionalHostnames = Util.fixEmptyAndTrim(additionalHostnames);
+    }
+
+    List<String> getAdditionalHostnameList() {
+        if (additionalHostnames == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(additionalHostnames.split("[\\s,]+"));
+    }
+
+    public boolean isDiscoverEndpoints() {
+        return discoverEndpoints;
+    }
+
+    /**
+     * @param discoverEndpoints send API requests to all online nodes of the cluster, by their cluster address.
+     */
+    @DataBoundSetter
+    public void setDiscoverEndpoints(boolean discoverEndpoints) {
+        this.discoverEndpoints = discoverEndpoints;
+    }
+
+    /**
+     * Discovers the nodes of the cluster again, if enabled and due. Called by {@link InventoryRefresh}.
+     */
+    void refreshEndpoints() {
+        long now = System.currentTimeMillis();
+        if (!discoverEndpoints || now - lastEndpointDiscovery < ENDPOINT_DISCOVERY_PERIOD_MS) {
+            return;
+        }
+        lastEndpointDiscovery = now;
+        proxmoxInstance().discoverEndpointsAsync().whenComplete((count, error) -> {
+            if (error != null) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Discovering the nodes of " + getDatacenterDescription() + " failed: " + error.getMessage());
+            } else {
+                LOGGER.log(Level.FINE, "{0} API endpoints for {1}", new Object[] {count, getDatacenterDescription()});
+            }
+        });
+    }
+
+    /**
+     * Reads which storages are shared, so the admission controller limits them once for the whole cluster.
+     * Only if a storage limit is set and the last read is older than {@link #ENDPOINT_DISCOVERY_PERIOD_MS}.
+     * Called by {@link InventoryRefresh}.
+     */
+    void refreshSharedStorages() {
+        long now = System.currentTimeMillis();
+        if (maxConcurrentStartsPerStorage == 0 || now - lastStorageRefresh < ENDPOINT_DISCOVERY_PERIOD_MS) {
+            return;
+        }
+        lastStorageRefresh = now;
+        AdmissionController controller = getAdmissionController();
+        proxmoxInstance().getSharedStoragesAsync().whenComplete((shared, error) -> {
+            if (error != null) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Reading the storages of " + getDatacenterDescription() + " failed: " + error.getMessage());
+            } else {
+                controller.setSharedStorages(shared);
+            }
+        });
+    }
+
     public String getDatacenterDescription() {
         return username + "@" + realm + " - " + hostname;
     }
@@ -86,14 +465,61 @@ public class Datacenter extends Cloud {
         return (DescriptorImpl) super.getDescriptor();
     }
 
-    public Connector proxmoxInstance() {
+    public synchronized Connector proxmoxInstance() {
         if (pveConnector == null) {
-            pveConnector = new Connector(hostname, username, realm, password, ignoreSSL);
+            pveConnector = createConnector(hostname, username, realm, password, ignoreSSL, tokenId, tokenSecret);
+            pveConnector.getRequestThrottle().configure(maxConcurrentRequests, requestsPerSecond);
+            pveConnector.setTimeouts(getConnectTimeoutSeconds() * 1000, getReadTimeoutSeconds() * 1000);
+            pveConnector.setMaxRetries(getMaxRetries());
+            pveConnector.setAdditionalEndpoints(getAdditionalHostnameList());
+            pveConnector.setRequestListener(ProxmoxMetrics.requestListener());
         }
         return pveConnector;
     }
 
+    static Connector createConnector(
+            String hostname,
+            String username,
+            String realm,
+            Secret password,
+            Boolean ignoreSSL,
+            String tokenId,
+            Secret tokenSecret) {
+        Connector connector = new Connector(hostname, username, realm, password, ignoreSSL);
+        if (Util.fixEmptyAndTrim(tokenId) != null && tokenSecret != null) {
+            connector.setApiToken(username + "@" + realm + "!" + tokenId.trim(), tokenSecret);
+        }
+        return connector;
+    }
+
+    /**
+     * @return the admission controller which spreads rollbacks and starts of the agents over time.
+     */
+    public synchronized AdmissionController getAdmissionController() {
+        if (admissionController == null) {
+            admissionController = new AdmissionController();
+            admissionController.configure(maxConcurrentStartsPerNode, maxConcurrentStartsPerStorage);
+            Computer.threadPoolForRemoting.submit(this::refreshSharedStorages);
+        }
+        return admissionController;
+    }
+
+    /**
+     * @return the inventory of the cluster, refreshed in the background by {@link InventoryRefresh}.
+     */
+    public synchronized ClusterInventory getInventory() {
+        if (inventory == null) {
+            inventory = new ClusterInventory(proxmoxInstance());
+        }
+        return inventory;
+    }
+
     public List<String> getNodes() {
+        ClusterInventory inventory = getInventory();
+        if (inventory.isFresh(InventoryRefresh.MAX_AGE_MS)) {
+            return inventory.getNodes();
+        }
+
         Connector pveConnector = proxmoxInstance();
         try {
             return pveConnector.getNodes();
@@ -103,26 +529,44 @@ public class Datacenter extends Cloud {
     }
 
     public HashMap<String, Integer> getQemuMachines(String node) {
+        return getGuests(node, GuestType.QEMU);
+    }
+
+    public HashMap<String, Integer> getGuests(String node, GuestType type) {
         if (node == null || node.isEmpty()) {
             return new HashMap<String, Integer>();
         }
 
+        ClusterInventory inventory = getInventory();
+        if (inventory.isFresh(InventoryRefresh.MAX_AGE_MS)) {
+            HashMap<String, Integer> res = new HashMap<String, Integer>();
+            for (ClusterResource guest : inventory.getGuests(node, type.getPath())) {
+                // like the live listing, guests without a name are listed by their id
+                res.put(guest.getName() != null ? guest.getName() : guest.getVmid().toString(), guest.getVmid());
+            }
+            return res;
+        }
+
         Connector pveConnector = proxmoxInstance();
         try {
-            return pveConnector.getQemuMachines(node);
+            return pveConnector.getGuests(node, type);
         } catch (LoginException e) {
             return new HashMap<String, Integer>();
         }
     }
 
     public List<String> getQemuMachineSnapshots(String node, Integer vmid) {
+        return getGuestSnapshots(node, GuestType.QEMU, vmid);
+    }
+
+    public List<String> getGuestSnapshots(String node, GuestType type, Integer vmid) {
         if (node == null || node.isEmpty() || vmid < 1) {
             return new ArrayList<String>();
         }
 
         Connector pveConnector = proxmoxInstance();
         try {
-            return pveConnector.getQemuMachineSnapshots(node, vmid);
+            return pveConnector.getGuestSnapshots(node, type, vmid);
         } catch (LoginException e) {
             return new ArrayList<String>();
         }
@@ -161,8 +605,21 @@ public class Datacenter extends Cloud {
             return emptyStringValidation("Realm", value);
         }
 
-        public FormValidation doCheckPassword(@QueryParameter Secret value) {
-            return emptyStringValidation("Password", value.getPlainText());
+        /**
+         * The password is only needed if no API token is configured.
+         */
+        public FormValidation doCheckPassword(@QueryParameter Secret value, @QueryParameter String tokenId) {
+            if (Util.fixEmptyAndTrim(tokenId) != null) {
+                return FormValidation.ok();
+            }
+            return emptyStringValidation("Password", Secret.toString(value));
+        }
+
+        public FormValidation doCheckTokenSecret(@QueryParameter Secret value, @QueryParameter String tokenId) {
+            if (Util.fixEmptyAndTrim(tokenId) == null) {
+                return FormValidation.ok();
+            }
+            return emptyStringValidation("Token secret", Secret.toString(value));
         }
 
         @POST
@@ -171,7 +628,9 @@ public class Datacenter extends Cloud {
                 @QueryParameter String username,
                 @QueryParameter String realm,
                 @QueryParameter Secret password,
-                @QueryParameter Boolean ignoreSSL) {
+                @QueryParameter Boolean ignoreSSL,
+                @QueryParameter String tokenId,
+                @QueryParameter Secret tokenSecret) {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
             try {
                 if (hostname.isEmpty()) {
@@ -183,11 +642,16 @@ public class Datacenter extends Cloud {
                 if (realm.isEmpty()) {
                     return fieldNotSpecifiedError("Realm");
                 }
-                if (password.getPlainText().isEmpty()) {
+                boolean useToken = Util.fixEmptyAndTrim(tokenId) != null;
+                if (useToken && (tokenSecret == null || tokenSecret.getPlainText().isEmpty())) {
+                    return fieldNotSpecifiedError("Token secret");
+                }
+                if (!useToken && password.getPlainText().isEmpty()) {
                     return fieldNotSpecifiedError("Password");
                 }
 
-                Connector pveConnector = new Connector(hostname, username, realm, password, ignoreSSL);
+                Connector pveConnector =
+                        createConnector(hostname, username, realm, password, ignoreSSL, tokenId, tokenSecret);
                 pveConnector.login();
                 return FormValidation.ok("Login successful");
 
@@ -0,0 +1,189 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.RetentionStrategy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.login.LoginException;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.proxmox.VirtualMachineLauncher.RevertPolicy;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps a {@link VirtualMachineSlave} online while it is busy. Once it has been idle for the configured number
+ * of minutes, the agent is disconnected and its virtual machine suspended to RAM, hibernated or stopped, so the
+ * cluster gets its memory and CPU back. The agent is launched again as soon as the queue has work it can take;
+ * the launcher resumes or starts the virtual machine.
+ */
+public class IdleSuspendRetentionStrategy extends RetentionStrategy<VirtualMachineSlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(IdleSuspendRetentionStrategy.class.getName());
+
+    public static enum IdleAction {
+        SUSPEND("Suspend to RAM, resume on demand"),
+        HIBERNATE("Hibernate to disk, resume on demand"),
+        STOP("Shut down, start on demand");
+
+        private final String label;
+
+        private IdleAction(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final int idleMinutes;
+    private final IdleAction idleAction;
+
+    @DataBoundConstructor
+    public IdleSuspendRetentionStrategy(int idleMinutes, IdleAction idleAction) {
+        this.idleMinutes = Math.max(idleMinutes, 1);
+        this.idleAction = idleAction;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public IdleAction getIdleAction() {
+        return idleAction == null ? IdleAction.SUSPEND : idleAction;
+    }
+
+    @Override
+    public long check(VirtualMachineSlaveComputer c) {
+        final Node node = c.getNode();
+        if (!(node instanceof VirtualMachineSlave) || !(node.getLauncher() instanceof VirtualMachineLauncher)) {
+            return 1;
+        }
+        if (c.isOffline()) {
+            if (!c.isConnecting()
+                    && !c.isSuspending()
+                    && !c.isTemporarilyOffline()
+                    && c.isLaunchSupported()
+                    && hasDemand(node)) {
+                LOGGER.log(Level.INFO, "Launching agent " + c.getName() + " for queued work");
+                c.connect(false);
+            }
+            return 1;
+        }
+        final VirtualMachineSlave slave = (VirtualMachineSlave) node;
+        if (!c.isIdle()
+                || !c.isAcceptingTasks()
+                || c.isRevertingSnapshot()
+                // the launcher could not bring the guest back
+                || !Boolean.TRUE.equals(slave.getStartVM())) {
+            return 1;
+        }
+        long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+        if (idleMillis > TimeUnit.MINUTES.toMillis(idleMinutes) && !hasDemand(node) && c.beginSuspend()) {
+            suspendInBackground(c, slave);
+        }
+        return 1;
+    }
+
+    /**
+     * @return true if a buildable item in the queue could run on the node.
+     */
+    static boolean hasDemand(Node node) {
+        for (Queue.BuildableItem item : Queue.getInstance().getBuildableItems()) {
+            if (isDemandFor(node, item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An agent which needs a revert is held back by {@link RevertBeforeJobDispatcher} until it is reverted, which
+     * its launch does, so only the label and the mode of the node count for it.
+     * @return true if the item could run on the node once it is launched.
+     */
+    static boolean isDemandFor(Node node, Queue.BuildableItem item) {
+        Computer c = node.toComputer();
+        if (c instanceof VirtualMachineSlaveComputer && ((VirtualMachineSlaveComputer) c).isRevertNeeded()) {
+            return RevertBeforeJobDispatcher.isWaitingFor(node, item);
+        }
+        return node.canTake(item) == null;
+    }
+
+    /**
+     * @return true if the guest of the node may have been suspended to RAM by this strategy.
+     */
+    static boolean canSuspend(Node node) {
+        return node instanceof VirtualMachineSlave
+                && ((VirtualMachineSlave) node).getRetentionStrategy() instanceof IdleSuspendRetentionStrategy;
+    }
+
+    private void suspendInBackground(final VirtualMachineSlaveComputer c, final VirtualMachineSlave slave) {
+        final VirtualMachineLauncher launcher = (VirtualMachineLauncher) slave.getLauncher();
+        final IdleAction action = getIdleAction();
+        LOGGER.log(Level.INFO, "Agent " + c.getName() + " is idle, " + action.name().toLowerCase() + " its guest");
+        c.setAcceptingTasks(false);
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                c.disconnect(OfflineCause.create(Messages._IdleSuspendRetentionStrategy_idle(idleMinutes)))
+                        .get();
+                // the launcher shuts the guest down itself when it disconnects, and reverts it when it connects
+                if (slave.getRevertPolicy() != RevertPolicy.AFTER_CONNECT) {
+                    launcher.suspend(c, action, c.getListener());
+                }
+            } catch (InterruptedException | ExecutionException | LoginException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Suspending the guest of idle agent " + c.getName() + " failed", e);
+            } finally {
+                c.setAcceptingTasks(true);
+                c.endSuspend();
+            }
+        });
+    }
+
+    @Override
+    public void start(VirtualMachineSlaveComputer c) {
+        c.connect(false);
+    }
+
+    /**
+     * Launches one suspended agent as soon as an item it can take becomes buildable, instead of waiting for the
+     * next periodic check.
+     */
+    @Extension
+    public static final class DemandListener extends QueueListener {
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem item) {
+            for (Node node : Jenkins.get().getNodes()) {
+                if (!canSuspend(node)) {
+                    continue;
+                }
+                Computer c = node.toComputer();
+                if (c instanceof VirtualMachineSlaveComputer
+                        && c.isOffline()
+                        && !c.isConnecting()
+                        && !c.isTemporarilyOffline()
+                        && !((VirtualMachineSlaveComputer) c).isSuspending()
+                        && isDemandFor(node, item)) {
+                    LOGGER.log(Level.INFO, "Launching agent " + c.getName() + " for " + item.task.getFullDisplayName());
+                    c.connect(false);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        @Override
+        public String getDisplayName() {
+            return "Suspend the Proxmox virtual machine when idle, resume it when there is work";
+        }
+    }
+}
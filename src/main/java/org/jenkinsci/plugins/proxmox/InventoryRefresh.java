@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.login.LoginException;
+import jenkins.model.Jenkins;
+
+/**
+ * Refreshes the {@link org.jenkinsci.plugins.proxmox.pve2api.ClusterInventory} of every datacenter, the
+ * API endpoints of datacenters which discover them, and the shared storages of datacenters with storage limits.
+ */
+@Extension
+public class InventoryRefresh extends AsyncPeriodicWork {
+
+    static final long RECURRENCE_PERIOD_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Inventories older than this are not used to answer lookups.
+     */
+    static final long MAX_AGE_MS = 3 * RECURRENCE_PERIOD_MS;
+
+    public InventoryRefresh() {
+        super("Proxmox inventory refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_MS;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Datacenter) {
+                Datacenter datacenter = (Datacenter) cloud;
+                try {
+                    datacenter.refreshEndpoints();
+                    datacenter.refreshSharedStorages();
+                    datacenter.getInventory().refresh();
+                } catch (LoginException | RuntimeException e) {
+                    listener.getLogger()
+                            .println("Refreshing the inventory of " + datacenter.getDatacenterDescription()
+                                    + " failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+import org.jenkinsci.plugins.proxmox.pve2api.NodeLoad;
+
+/**
+ * Chooses the Proxmox node a stopped agent is started on. The agent stays on its node unless that node is
+ * above the overload threshold and an eligible node is less loaded.
+ */
+public class NodePlacement {
+
+    private static final Logger LOGGER = Logger.getLogger(NodePlacement.class.getName());
+
+    private NodePlacement() {}
+
+    /**
+     * @return the node names in a comma or whitespace separated list.
+     */
+    public static List<String> parseNodes(String nodes) {
+        Set<String> res = new LinkedHashSet<String>();
+        if (nodes != null) {
+            for (String node : nodes.split("[,\\s]+")) {
+                if (Util.fixEmptyAndTrim(node) != null) {
+                    res.add(node.trim());
+                }
+            }
+        }
+        return new ArrayList<String>(res);
+    }
+
+    /**
+     * @param threshold the load, between 0 and 1, above which a node is considered overloaded.
+     * @return the load of the node to start on; the current node if it is not overloaded or no eligible node
+     *         is less loaded, or null if the load of the current node is unknown.
+     */
+    public static NodeLoad chooseNode(Connector pve, String currentNode, List<String> eligibleNodes, double threshold) {
+        List<String> nodes = new ArrayList<String>(eligibleNodes);
+        if (!nodes.contains(currentNode)) {
+            nodes.add(0, currentNode);
+        }
+        List<CompletableFuture<NodeLoad>> requests = new ArrayList<CompletableFuture<NodeLoad>>();
+        for (String node : nodes) {
+            requests.add(pve.getNodeLoadAsync(node));
+        }
+
+        NodeLoad current = null;
+        NodeLoad best = null;
+        for (CompletableFuture<NodeLoad> request : requests) {
+            NodeLoad load;
+            try {
+                load = request.join();
+            } catch (RuntimeException e) {
+                // offline nodes are not eligible
+                LOGGER.log(Level.FINE, "Could not read the load of a node", e);
+                continue;
+            }
+            if (load.getNode().equals(currentNode)) {
+                current = load;
+            }
+            if (best == null || load.getLoad() < best.getLoad()) {
+                best = load;
+            }
+        }
+        if (current == null || current.getLoad() <= threshold || best == null) {
+            return current;
+        }
+        return best.getLoad() < current.getLoad() ? best : current;
+    }
+}
@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.DescriptorVisibilityFilter;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.RetentionStrategy;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps a {@link ProvisionedVirtualMachineSlave} while it is busy and destroys it once it has been idle
+ * for the configured number of minutes.
+ */
+public class ProvisionedRetentionStrategy extends RetentionStrategy<VirtualMachineSlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisionedRetentionStrategy.class.getName());
+
+    private final int idleMinutes;
+
+    @DataBoundConstructor
+    public ProvisionedRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @Override
+    public long check(VirtualMachineSlaveComputer c) {
+        final Node node = c.getNode();
+        if (!(node instanceof ProvisionedVirtualMachineSlave) || !c.isAcceptingTasks() || c.isConnecting()) {
+            return 1;
+        }
+        if (c.isIdle()) {
+            long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+            if (idleMillis > TimeUnit.MINUTES.toMillis(idleMinutes) && !isNeededForWarmPool(c)) {
+                LOGGER.log(Level.INFO, "Terminating idle agent " + c.getName());
+                c.setAcceptingTasks(false);
+                final ProvisionedVirtualMachineSlave slave = (ProvisionedVirtualMachineSlave) node;
+                Computer.threadPoolForRemoting.submit(() -> {
+                    try {
+                        slave.terminate(TaskListener.NULL);
+                    } catch (IOException | InterruptedException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to terminate agent " + slave.getNodeName(), e);
+                    }
+                });
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Idle agents are kept as long as the warm pool of their template is not above its target.
+     */
+    private boolean isNeededForWarmPool(VirtualMachineSlaveComputer c) {
+        ProvisionedVirtualMachineSlave slave = (ProvisionedVirtualMachineSlave) c.getNode();
+        VirtualMachineTemplate template = slave.findTemplate();
+        if (template == null) {
+            return false;
+        }
+        int target = template.getWarmPoolTarget(Calendar.getInstance());
+        return target > 0 && template.countIdleAgents(slave.getDatacenterDescription()) <= target;
+    }
+
+    @Override
+    public void start(VirtualMachineSlaveComputer c) {
+        c.connect(false);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        @Override
+        public String getDisplayName() {
+            return "Destroy the provisioned virtual machine when idle";
+        }
+    }
+
+    /**
+     * Only agents provisioned from a template can be destroyed, so the strategy is not offered for other agents.
+     */
+    @Extension
+    public static final class VisibilityFilter extends DescriptorVisibilityFilter {
+        @Override
+        public boolean filter(Object context, Descriptor descriptor) {
+            return !(descriptor instanceof DescriptorImpl) || context instanceof ProvisionedVirtualMachineSlave;
+        }
+
+        @Override
+        public boolean filterType(Class<?> contextClass, Descriptor descriptor) {
+            return !(descriptor instanceof DescriptorImpl)
+                    || ProvisionedVirtualMachineSlave.class.isAssignableFrom(contextClass);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.SlaveComputer;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.login.LoginException;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import kong.unirest.json.JSONObject;
+import org.jenkinsci.plugins.proxmox.VirtualMachineLauncher.RevertPolicy;
+import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+
+/**
+ * An agent running on a linked clone of a {@link VirtualMachineTemplate}.
+ * The clone is destroyed when the agent is terminated.
+ * <p>
+ * Every clone has its own copy of the template's launch method, which is given the connection details of the
+ * clone once it runs, see {@link #prepareConnection}.
+ */
+public class ProvisionedVirtualMachineSlave extends VirtualMachineSlave {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisionedVirtualMachineSlave.class.getName());
+
+    /**
+     * The file inside the clone which an inbound agent reads its connection details from.
+     */
+    static final String CONNECTION_FILE = SystemProperties.getString(
+            ProvisionedVirtualMachineSlave.class.getName() + ".connectionFile", "/etc/jenkins-agent.env");
+
+    private final Integer templateVirtualMachineId;
+
+    public ProvisionedVirtualMachineSlave(
+            String name, String datacenterDescription, VirtualMachineTemplate template, Integer virtualMachineId)
+            throws IOException, Descriptor.FormException {
+        super(
+                name,
+                "Provisioned from Proxmox template " + template.getTemplateVirtualMachineId(),
+                template.getRemoteFS(),
+                String.valueOf(template.getNumExecutors()),
+                template.getLabelString().isEmpty() ? Mode.NORMAL : Mode.EXCLUSIVE,
+                template.getLabelString(),
+                template.newLauncher(),
+                new ProvisionedRetentionStrategy(template.getIdleMinutes()),
+                Collections.emptyList(),
+                datacenterDescription,
+                template.getDatacenterNode(),
+                virtualMachineId,
+                "current",
+                true,
+                template.getStartupWaitingPeriodSeconds(),
+                RevertPolicy.AFTER_CONNECT);
+        this.templateVirtualMachineId = template.getTemplateVirtualMachineId();
+    }
+
+    public Integer getTemplateVirtualMachineId() {
+        return templateVirtualMachineId;
+    }
+
+    public boolean isProvisionedFrom(String datacenterDescription, VirtualMachineTemplate template) {
+        return getDatacenterDescription().equals(datacenterDescription)
+                && templateVirtualMachineId.equals(template.getTemplateVirtualMachineId())
+                && getLabelString().equals(template.getLabelString());
+    }
+
+    /**
+     * @return the template this agent was cloned from, or null if it is no longer configured.
+     */
+    public VirtualMachineTemplate findTemplate() {
+        Datacenter datacenter = Datacenter.getByDescription(getDatacenterDescription());
+        if (datacenter != null) {
+            for (VirtualMachineTemplate template : datacenter.getTemplates()) {
+                if (isProvisionedFrom(getDatacenterDescription(), template)) {
+                    return template;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands the running clone its own connection details through its QEMU guest agent, within the startup idle
+     * time. An inbound agent gets its name, its secret and the URL of Jenkins written to {@link #CONNECTION_FILE}
+     * as {@code JENKINS_URL}, {@code JENKINS_AGENT_NAME}, {@code JENKINS_SECRET} and
+     * {@code JENKINS_AGENT_WORKDIR}. A launcher which connects to the agent, like the SSH launcher, gets the
+     * first address of the clone as its host.
+     */
+    void prepareConnection(SlaveComputer computer, TaskListener listener) throws InterruptedException {
+        ComputerLauncher launcher = getDelegateLauncher();
+        boolean inbound = launcher instanceof JNLPLauncher;
+        if (!inbound && findHostField(launcher.getClass()) == null) {
+            return;
+        }
+        Connector pve = ((VirtualMachineLauncher) getLauncher()).findDatacenterInstance().proxmoxInstance();
+        long deadline = System.currentTimeMillis() + getStartupWaitingPeriodSeconds() * 1000L;
+        while (true) {
+            try {
+                if (inbound) {
+                    if (pve.pingQemuGuestAgent(getDatacenterNode(), getVirtualMachineId())) {
+                        pve.writeQemuGuestAgentFile(
+                                getDatacenterNode(), getVirtualMachineId(), CONNECTION_FILE, connectionFile(computer));
+                        listener.getLogger().println("Wrote the connection details of the agent to " + CONNECTION_FILE);
+                        return;
+                    }
+                } else {
+                    List<String> addresses = pve.getQemuGuestAgentAddresses(getDatacenterNode(), getVirtualMachineId());
+                    if (!addresses.isEmpty()) {
+                        setHost(launcher, addresses.get(0));
+                        saveLauncher();
+                        listener.getLogger().println("Connecting to the clone at " + addresses.get(0));
+                        return;
+                    }
+                }
+            } catch (LoginException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Guest agent of " + getVirtualMachineId() + " not ready yet", e);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                listener.getLogger()
+                        .println("WARNING: The QEMU guest agent of the clone did not respond within "
+                                + getStartupWaitingPeriodSeconds() + " seconds, it has no connection details");
+                return;
+            }
+            Thread.sleep(VirtualMachineLauncher.READINESS_POLL_INTERVAL_MS);
+        }
+    }
+
+    private void saveLauncher() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the launcher of agent " + getNodeName(), e);
+        }
+    }
+
+    private String connectionFile(SlaveComputer computer) {
+        String rootUrl = Jenkins.get().getRootUrl();
+        return "JENKINS_URL=" + (rootUrl == null ? "" : rootUrl) + "\n"
+                + "JENKINS_AGENT_NAME=" + getNodeName() + "\n"
+                + "JENKINS_SECRET=" + computer.getJnlpMac() + "\n"
+                + "JENKINS_AGENT_WORKDIR=" + getRemoteFS() + "\n";
+    }
+
+    /**
+     * Launchers which connect to the agent keep its host in a field named {@code host}, like the SSH launcher,
+     * which has no setter for it. It is set reflectively, so this plugin does not depend on a specific launcher;
+     * the clone has its own copy of the launcher.
+     */
+    static void setHost(ComputerLauncher launcher, String host) {
+        Field field = findHostField(launcher.getClass());
+        if (field == null) {
+            return;
+        }
+        try {
+            field.setAccessible(true);
+            field.set(launcher, host);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot set the host of " + launcher.getClass().getName(), e);
+        }
+    }
+
+    private static Field findHostField(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField("host");
+                return field.getType() == String.class ? field : null;
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the agent from Jenkins and destroys its virtual machine. Failures are logged, the agent is
+     * removed anyway.
+     */
+    public void terminate(TaskListener listener) throws IOException, InterruptedException {
+        Computer computer = toComputer();
+        if (computer != null) {
+            // the launcher shuts the guest down when it disconnects, which locks the guest until it is done
+            try {
+                computer.disconnect(OfflineCause.create(Messages._ProvisionedVirtualMachineSlave_terminated()))
+                        .get();
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Disconnecting agent " + getNodeName() + " failed", e.getCause());
+            }
+        }
+        Jenkins.get().removeNode(this);
+
+        try {
+            Connector pve = ((VirtualMachineLauncher) getLauncher()).findDatacenterInstance().proxmoxInstance();
+            // a guest suspended to RAM has to be stopped as well
+            JSONObject status = pve.getQemuMachineStatus(getDatacenterNode(), getVirtualMachineId());
+            if (status.optString("status").equals("running")) {
+                String taskId = pve.stopQemuMachine(getDatacenterNode(), getVirtualMachineId());
+                JSONObject taskStatus = pve.waitForTaskToFinish(getDatacenterNode(), taskId);
+                if (!"OK".equals(taskStatus.optString("exitstatus"))) {
+                    LOGGER.log(Level.WARNING, "Stopping virtual machine " + getVirtualMachineId() + " of agent "
+                            + getNodeName() + " failed: " + taskStatus);
+                }
+            }
+            String taskId = pve.destroyQemuMachine(getDatacenterNode(), getVirtualMachineId());
+            JSONObject taskStatus = pve.waitForTaskToFinish(getDatacenterNode(), taskId);
+            if (!"OK".equals(taskStatus.optString("exitstatus"))) {
+                LOGGER.log(Level.WARNING, "Destroying virtual machine " + getVirtualMachineId() + " of agent "
+                        + getNodeName() + " failed, the clone is left behind: " + taskStatus);
+                listener.getLogger()
+                        .println("ERROR: Destroying virtual machine \"" + getVirtualMachineId() + "\" failed: "
+                                + taskStatus);
+                return;
+            }
+            LOGGER.log(Level.INFO, "Destroyed virtual machine " + getVirtualMachineId() + " of agent " + getNodeName());
+            listener.getLogger()
+                    .println("Virtual machine \"" + getVirtualMachineId() + "\" (agent \"" + getNodeName()
+                            + "\") destroyed. Status object: " + taskStatus.toString());
+        } catch (LoginException | RuntimeException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Destroying virtual machine " + getVirtualMachineId() + " of agent " + getNodeName()
+                            + " failed, the clone is left behind",
+                    e);
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends SlaveDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Agent virtual machine provisioned from a Proxmox template.";
+        }
+
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Computer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The recent lifecycle events of a {@link VirtualMachineSlaveComputer}: disconnects, rollbacks, starts,
+ * readiness probes and connects, with their timestamps and durations.
+ * Shown as a timeline on the computer page and exported as {@code provisioning/api/json}.
+ * The events are kept in a ring buffer of fixed size, the oldest events are dropped.
+ */
+@ExportedBean
+public class ProvisioningTimeline implements Action {
+
+    static final int CAPACITY =
+            Math.max(1, SystemProperties.getInteger(ProvisioningTimeline.class.getName() + ".capacity", 32));
+
+    static final int MAX_MESSAGE_LENGTH = 256;
+
+    public enum EventType {
+        DISCONNECT,
+        MIGRATE,
+        ROLLBACK,
+        START,
+        READINESS,
+        CONNECT,
+        SHUTDOWN,
+        SUSPEND,
+        RESUME
+    }
+
+    private final transient Computer computer;
+    private final Event[] events = new Event[CAPACITY];
+    private int next;
+    private int size;
+
+    public ProvisioningTimeline(Computer computer) {
+        this.computer = computer;
+    }
+
+    public Computer getComputer() {
+        return computer;
+    }
+
+    /**
+     * @param durationMillis the duration of the event, or -1 if it has none.
+     */
+    public synchronized void record(EventType type, String message, long durationMillis) {
+        events[next] = new Event(System.currentTimeMillis(), type, message, durationMillis);
+        next = (next + 1) % events.length;
+        size = Math.min(size + 1, events.length);
+    }
+
+    /**
+     * Records an event on the timeline of the computer, if it has one.
+     */
+    static void record(Computer computer, EventType type, String message, long durationMillis) {
+        if (computer instanceof VirtualMachineSlaveComputer) {
+            ((VirtualMachineSlaveComputer) computer).getTimeline().record(type, message, durationMillis);
+        }
+    }
+
+    /**
+     * @return the recorded events, the oldest first.
+     */
+    @Exported
+    public synchronized List<Event> getEvents() {
+        List<Event> res = new ArrayList<Event>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(events[(next - size + i + events.length) % events.length]);
+        }
+        return res;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.ProvisioningTimeline_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "provisioning";
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Event {
+        private final long timestamp;
+        private final EventType type;
+        private final String message;
+        private final long durationMillis;
+
+        Event(long timestamp, EventType type, String message, long durationMillis) {
+            this.timestamp = timestamp;
+            this.type = type;
+            this.message = message != null && message.length() > MAX_MESSAGE_LENGTH
+                    ? message.substring(0, MAX_MESSAGE_LENGTH) + "..."
+                    : message;
+            this.durationMillis = durationMillis;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Date getTime() {
+            return new Date(timestamp);
+        }
+
+        @Exported
+        public EventType getType() {
+            return type;
+        }
+
+        @Exported
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the duration in milliseconds, or -1 if the event has none.
+         */
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
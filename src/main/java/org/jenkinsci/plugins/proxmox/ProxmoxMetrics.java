@@ -0,0 +1,341 @@
+package org.jenkinsci.plugins.proxmox;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.proxmox.pve2api.CircuitBreaker;
+import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+import org.jenkinsci.plugins.proxmox.pve2api.EndpointPool;
+import org.jenkinsci.plugins.proxmox.pve2api.RequestListener;
+import org.jenkinsci.plugins.proxmox.pve2api.RequestPriority;
+import org.jenkinsci.plugins.proxmox.pve2api.RequestThrottle;
+
+/**
+ * Timers and counters of the Proxmox API calls and of the launch phases of the agents, published in the
+ * registry of the Metrics plugin and over JMX as {@code org.jenkinsci.plugins.proxmox:type=Metrics}.
+ * <ul>
+ *     <li>{@code proxmox.api.<method>.<endpoint>}: timer per endpoint template, with counters
+ *     {@code .status.<code>} and {@code .retries}</li>
+ *     <li>{@code proxmox.api.queued}: time requests waited for the request limits</li>
+ *     <li>{@code proxmox.api.throttle.queue-depth}, {@code .queue-depth.<priority>}, {@code .in-flight} and
+ *     {@code .max-wait}: gauges of the request throttles of all datacenters</li>
+ *     <li>{@code proxmox.api.circuit-breaker.<state>}: how often the circuit breakers changed to the state</li>
+ *     <li>{@code proxmox.tasks.<type>}: duration of Proxmox tasks, e.g. {@code qmrollback}, with the counter
+ *     {@code .failed}</li>
+ *     <li>{@code proxmox.launcher.<phase>} and {@code proxmox.launcher.<phase>.<node>}: duration of the
+ *     revert, start, boot-wait, connect, shutdown, suspend and resume phases, in total and per Proxmox
+ *     node</li>
+ * </ul>
+ */
+public final class ProxmoxMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(ProxmoxMetrics.class.getName());
+
+    public static final String REVERT = "revert";
+    public static final String START = "start";
+    public static final String BOOT_WAIT = "boot-wait";
+    public static final String CONNECT = "connect";
+    public static final String SHUTDOWN = "shutdown";
+    public static final String SUSPEND = "suspend";
+    public static final String RESUME = "resume";
+
+    static final String PREFIX = "proxmox";
+
+    private static final RequestListener REQUEST_LISTENER = new RequestListener() {
+        @Override
+        public void onResponse(String method, String endpoint, int status, long queuedNanos, long durationNanos) {
+            MetricRegistry registry = registry();
+            String name = MetricRegistry.name(PREFIX, "api", method, endpoint);
+            registry.timer(name).update(durationNanos, TimeUnit.NANOSECONDS);
+            registry.counter(MetricRegistry.name(name, "status", String.valueOf(status)))
+                    .inc();
+            registry.timer(MetricRegistry.name(PREFIX, "api", "queued")).update(queuedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void onRetry(String method, String endpoint) {
+            registry().counter(MetricRegistry.name(PREFIX, "api", method, endpoint, "retries"))
+                    .inc();
+        }
+
+        @Override
+        public void onCircuitBreakerStateChange(CircuitBreaker.State state) {
+            registry().counter(MetricRegistry.name(PREFIX, "api", "circuit-breaker", state.name().toLowerCase()))
+                    .inc();
+        }
+
+        @Override
+        public void onTaskFinished(String node, String type, String exitStatus, long durationNanos) {
+            MetricRegistry registry = registry();
+            String name = MetricRegistry.name(PREFIX, "tasks", type);
+            registry.timer(name).update(durationNanos, TimeUnit.NANOSECONDS);
+            if (!"OK".equals(exitStatus)) {
+                registry.counter(MetricRegistry.name(name, "failed")).inc();
+            }
+        }
+    };
+
+    private ProxmoxMetrics() {}
+
+    static MetricRegistry registry() {
+        return Metrics.metricRegistry();
+    }
+
+    public static RequestListener requestListener() {
+        return REQUEST_LISTENER;
+    }
+
+    /**
+     * Starts timing a launch phase of an agent on a Proxmox node; close the returned timer when it is done.
+     */
+    public static Phase startPhase(String phase, String node) {
+        return new Phase(phase, node);
+    }
+
+    public static void recordPhase(String phase, String node, long durationNanos) {
+        MetricRegistry registry = registry();
+        registry.timer(MetricRegistry.name(PREFIX, "launcher", phase)).update(durationNanos, TimeUnit.NANOSECONDS);
+        if (node != null) {
+            registry.timer(MetricRegistry.name(PREFIX, "launcher", phase, node))
+                    .update(durationNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static final class Phase implements AutoCloseable {
+        private final String phase;
+        private final String node;
+        private final long start = System.nanoTime();
+
+        private Phase(String phase, String node) {
+            this.phase = phase;
+            this.node = node;
+        }
+
+        @Override
+        public void close() {
+            recordPhase(phase, node, System.nanoTime() - start);
+        }
+    }
+
+    private interface ThrottleStatistic {
+        double of(RequestThrottle throttle);
+    }
+
+    /**
+     * @return the sum of the statistic over the request throttles of all datacenters.
+     */
+    private static double sumOverThrottles(ThrottleStatistic statistic) {
+        double sum = 0;
+        for (Datacenter datacenter : Jenkins.get().clouds.getAll(Datacenter.class)) {
+            sum += statistic.of(datacenter.proxmoxInstance().getRequestThrottle());
+        }
+        return sum;
+    }
+
+    private static double maxOverThrottles(ThrottleStatistic statistic) {
+        double max = 0;
+        for (Datacenter datacenter : Jenkins.get().clouds.getAll(Datacenter.class)) {
+            max = Math.max(max, statistic.of(datacenter.proxmoxInstance().getRequestThrottle()));
+        }
+        return max;
+    }
+
+    private static void registerGauge(MetricRegistry registry, String name, Gauge<?> gauge) {
+        if (!registry.getGauges().containsKey(name)) {
+            registry.register(name, gauge);
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void registerGauges() {
+        MetricRegistry registry = registry();
+        String throttle = MetricRegistry.name(PREFIX, "api", "throttle");
+        registerGauge(
+                registry,
+                MetricRegistry.name(throttle, "queue-depth"),
+                (Gauge<Integer>) () -> (int) sumOverThrottles(RequestThrottle::getQueueDepth));
+        for (RequestPriority priority : RequestPriority.values()) {
+            registerGauge(
+                    registry,
+                    MetricRegistry.name(throttle, "queue-depth", priority.name().toLowerCase()),
+                    (Gauge<Integer>) () -> (int) sumOverThrottles(t -> t.getQueueDepth(priority)));
+        }
+        registerGauge(
+                registry,
+                MetricRegistry.name(throttle, "in-flight"),
+                (Gauge<Integer>) () -> (int) sumOverThrottles(RequestThrottle::getInFlight));
+        registerGauge(
+                registry,
+                MetricRegistry.name(throttle, "max-wait"),
+                (Gauge<Double>) () -> maxOverThrottles(RequestThrottle::getMaxWaitMillis));
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.jenkinsci.plugins.proxmox:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Jmx(), name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register the Proxmox metrics over JMX", e);
+        }
+    }
+
+    /**
+     * The metrics over JMX. Durations are in milliseconds.
+     */
+    public interface ProxmoxMetricsMXBean {
+        Map<String, Long> getCounts();
+
+        Map<String, Double> getMeanMillis();
+
+        Map<String, Double> getP50Millis();
+
+        Map<String, Double> getP95Millis();
+
+        Map<String, Double> getP99Millis();
+
+        Map<String, Double> getMaxMillis();
+
+        /**
+         * @return the state of the circuit breaker, the consecutive failures and the retries by datacenter.
+         */
+        Map<String, String> getCircuitBreakers();
+
+        /**
+         * @return the API endpoints with their state, requests in flight and latency.
+         */
+        Map<String, String> getEndpoints();
+
+        /**
+         * @return the queued requests by priority, the requests in flight and the average and longest wait for
+         *         the request limits by datacenter.
+         */
+        Map<String, String> getRequestThrottles();
+    }
+
+    static final class Jmx implements ProxmoxMetricsMXBean {
+
+        private interface Statistic {
+            double of(Timer timer);
+        }
+
+        private static Map<String, Double> timers(Statistic statistic) {
+            Map<String, Double> res = new TreeMap<String, Double>();
+            for (Map.Entry<String, Timer> timer :
+                    registry().getTimers((name, metric) -> name.startsWith(PREFIX + "."))
+                            .entrySet()) {
+                res.put(timer.getKey(), statistic.of(timer.getValue()) / TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            return res;
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            Map<String, Long> res = new TreeMap<String, Long>();
+            for (Map.Entry<String, Timer> timer :
+                    registry().getTimers((name, metric) -> name.startsWith(PREFIX + "."))
+                            .entrySet()) {
+                res.put(timer.getKey(), timer.getValue().getCount());
+            }
+            for (Map.Entry<String, Counter> counter :
+                    registry().getCounters((name, metric) -> name.startsWith(PREFIX + "."))
+                            .entrySet()) {
+                res.put(counter.getKey(), counter.getValue().getCount());
+            }
+            return res;
+        }
+
+        @Override
+        public Map<String, Double> getMeanMillis() {
+            return timers(timer -> timer.getSnapshot().getMean());
+        }
+
+        @Override
+        public Map<String, Double> getP50Millis() {
+            return timers(timer -> timer.getSnapshot().getMedian());
+        }
+
+        @Override
+        public Map<String, Double> getP95Millis() {
+            return timers(timer -> timer.getSnapshot().get95thPercentile());
+        }
+
+        @Override
+        public Map<String, Double> getP99Millis() {
+            return timers(timer -> timer.getSnapshot().get99thPercentile());
+        }
+
+        @Override
+        public Map<String, Double> getMaxMillis() {
+            return timers(timer -> timer.getSnapshot().getMax());
+        }
+
+        @Override
+        public Map<String, String> getCircuitBreakers() {
+            Map<String, String> res = new TreeMap<String, String>();
+            for (Datacenter datacenter : Jenkins.get().clouds.getAll(Datacenter.class)) {
+                Connector connector = datacenter.proxmoxInstance();
+                CircuitBreaker breaker = connector.getCircuitBreaker();
+                res.put(
+                        datacenter.getDatacenterDescription(),
+                        breaker.getState() + ", " + breaker.getConsecutiveFailures() + " consecutive failures, "
+                                + connector.getRetryCount() + " retries");
+            }
+            return res;
+        }
+
+        @Override
+        public Map<String, String> getEndpoints() {
+            Map<String, String> res = new TreeMap<String, String>();
+            long now = System.currentTimeMillis();
+            for (Datacenter datacenter : Jenkins.get().clouds.getAll(Datacenter.class)) {
+                for (EndpointPool.Endpoint endpoint :
+                        datacenter.proxmoxInstance().getEndpointPool().getEndpoints()) {
+                    res.put(
+                            datacenter.getDatacenterDescription() + " " + endpoint.getBaseURL(),
+                            (endpoint.isHealthy(now) ? "healthy" : "paused") + ", " + endpoint.getInFlight()
+                                    + " in flight, " + Math.round(endpoint.getLatencyMillis()) + " ms");
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public Map<String, String> getRequestThrottles() {
+            Map<String, String> res = new TreeMap<String, String>();
+            for (Datacenter datacenter : Jenkins.get().clouds.getAll(Datacenter.class)) {
+                RequestThrottle throttle = datacenter.proxmoxInstance().getRequestThrottle();
+                StringBuilder queued = new StringBuilder();
+                for (RequestPriority priority : RequestPriority.values()) {
+                    queued.append(queued.length() == 0 ? "" : ", ")
+                            .append(priority.name().toLowerCase())
+                            .append(' ')
+                            .append(throttle.getQueueDepth(priority));
+                }
+                res.put(
+                        datacenter.getDatacenterDescription(),
+                        throttle.getQueueDepth() + " queued (" + queued + "), " + throttle.getInFlight()
+                                + " in flight, " + Math.round(throttle.getAverageWaitMillis()) + " ms average wait, "
+                                + Math.round(throttle.getMaxWaitMillis()) + " ms longest wait");
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps jobs away from agents with the {@link VirtualMachineLauncher.RevertPolicy#BEFORE_JOB} or
+ * {@link VirtualMachineLauncher.RevertPolicy#AFTER_JOB} policy until their snapshot has been reverted.
+ * The revert is started by {@link DemandListener} when a job the dirty idle agent could take enters the queue,
+ * or by the agent when its last job completes, unless it already started then. It runs outside of any executor,
+ * so other agents can take the job in the meantime.
+ */
+@Extension
+public class RevertBeforeJobDispatcher extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(node instanceof VirtualMachineSlave)) {
+            return null;
+        }
+        Computer computer = node.toComputer();
+        if (!(computer instanceof VirtualMachineSlaveComputer)) {
+            return null;
+        }
+        VirtualMachineSlaveComputer vmComputer = (VirtualMachineSlaveComputer) computer;
+        if (vmComputer.isRevertingSnapshot()) {
+            return CauseOfBlockage.fromMessage(
+                    Messages._RevertBeforeJobDispatcher_revertingSnapshot(node.getDisplayName()));
+        }
+        if (vmComputer.isRevertNeeded()) {
+            return CauseOfBlockage.fromMessage(
+                    Messages._RevertBeforeJobDispatcher_revertNeeded(node.getDisplayName()));
+        }
+        return null;
+    }
+
+    /**
+     * {@link Node#canTake} asks the dispatchers, which hold the item back from a dirty agent, so this only
+     * checks the label and the mode of the node.
+     * @return true if the item could run on the node once it is clean.
+     */
+    static boolean isWaitingFor(Node node, Queue.BuildableItem item) {
+        Label label = item.getAssignedLabel();
+        if (label == null) {
+            return node.getMode() == Node.Mode.NORMAL;
+        }
+        return label.contains(node);
+    }
+
+    /**
+     * @return true if a buildable item in the queue could run on the node once it is clean.
+     */
+    static boolean hasWaitingItem(Node node) {
+        for (Queue.BuildableItem item : Queue.getInstance().getBuildableItems()) {
+            if (isWaitingFor(node, item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the revert of one dirty idle agent as soon as an item it could take becomes buildable.
+     */
+    @Extension
+    public static final class DemandListener extends QueueListener {
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem item) {
+            for (Node node : Jenkins.get().getNodes()) {
+                if (!(node instanceof VirtualMachineSlave)) {
+                    continue;
+                }
+                Computer computer = node.toComputer();
+                if (computer instanceof VirtualMachineSlaveComputer
+                        && ((VirtualMachineSlaveComputer) computer).isRevertNeeded()
+                        && !((VirtualMachineSlaveComputer) computer).isRevertingSnapshot()
+                        && computer.isIdle()
+                        && computer.isOnline()
+                        && isWaitingFor(node, item)) {
+                    ((VirtualMachineSlaveComputer) computer).revertSnapshotInBackground();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.RetentionStrategy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.proxmox.pve2api.ClusterInventory;
+import org.jenkinsci.plugins.proxmox.pve2api.ClusterResource;
+import org.jenkinsci.plugins.proxmox.pve2api.RequestPriority;
+
+/**
+ * Brings the agents online after the controller has started. The state of all guests of a datacenter is read
+ * with one bulk request, which the first launch of every agent shares instead of asking for its own guest.
+ * First launches run in parallel, but at most {@link #MAX_PARALLEL_LAUNCHES} at a time, and agents whose
+ * guest is running and clean get a launch slot before the ones which have to be reverted or started.
+ * <p>
+ * This only applies to the agents which existed when the controller started, and only during the first
+ * {@link #STARTUP_WINDOW_MINUTES} minutes: agents added later, like provisioned clones, launch right away
+ * and read the live state of their guest.
+ */
+public final class StartupReconciliation {
+
+    private static final Logger LOGGER = Logger.getLogger(StartupReconciliation.class.getName());
+
+    static final int MAX_PARALLEL_LAUNCHES =
+            SystemProperties.getInteger(StartupReconciliation.class.getName() + ".maxParallelLaunches", 16);
+
+    static final int STARTUP_WINDOW_MINUTES =
+            SystemProperties.getInteger(StartupReconciliation.class.getName() + ".startupWindowMinutes", 10);
+
+    /**
+     * The bulk state is used by first launches as long as it is not older than this.
+     */
+    static final long PREFETCH_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final Object LAUNCH_SLOTS = new Object();
+    private static int freeLaunchSlots = MAX_PARALLEL_LAUNCHES;
+    private static int waitingCleanLaunches;
+
+    /**
+     * The names of the agents which existed when the controller started, null while it is still starting.
+     */
+    private static volatile Set<String> startupAgents;
+
+    private static volatile long startupWindowEnd = Long.MAX_VALUE;
+
+    private StartupReconciliation() {}
+
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void reconcile() {
+        Set<String> agents = new HashSet<String>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof VirtualMachineSlave) {
+                agents.add(node.getNodeName());
+            }
+        }
+        startupAgents = agents;
+        startupWindowEnd = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(STARTUP_WINDOW_MINUTES);
+        Computer.threadPoolForRemoting.submit(StartupReconciliation::launchAgents);
+    }
+
+    /**
+     * @return true if the agent existed when the controller started and the startup window is not over.
+     */
+    static boolean isStartupLaunch(VirtualMachineSlave slave) {
+        if (System.currentTimeMillis() >= startupWindowEnd) {
+            return false;
+        }
+        Set<String> agents = startupAgents;
+        return agents == null || agents.contains(slave.getNodeName());
+    }
+
+    /**
+     * Agents are launched by their retention strategy while the nodes are loaded, this launches the ones which
+     * are still offline once the controller has started.
+     */
+    static void launchAgents() {
+        List<CompletableFuture<Void>> prefetches = new ArrayList<CompletableFuture<Void>>();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Datacenter) {
+                prefetches.add(prefetch((Datacenter) cloud));
+            }
+        }
+        for (CompletableFuture<Void> prefetch : prefetches) {
+            try {
+                prefetch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Reading the state of the guests failed", e.getCause());
+            }
+        }
+
+        int launched = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (!(node instanceof VirtualMachineSlave)
+                    || !(node.getLauncher() instanceof VirtualMachineLauncher)
+                    // agents launched on demand stay offline until they are needed
+                    || ((VirtualMachineSlave) node).getRetentionStrategy() instanceof RetentionStrategy.Demand) {
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (computer == null
+                    || computer.isOnline()
+                    || computer.isConnecting()
+                    || computer.isTemporarilyOffline()
+                    || !computer.isLaunchSupported()) {
+                continue;
+            }
+            // first launches wait for a launch slot, clean agents first
+            computer.connect(false);
+            launched++;
+        }
+        LOGGER.log(Level.INFO, "Launching " + launched + " agents which were not launched at startup");
+    }
+
+    private static CompletableFuture<Void> prefetch(Datacenter datacenter) {
+        ClusterInventory inventory = datacenter.getInventory();
+        if (inventory.isFresh(PREFETCH_MAX_AGE_MS)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return inventory.refreshAsync(RequestPriority.CRITICAL);
+    }
+
+    /**
+     * @return the guest of the agent from the bulk state, or null if it is not known or the agent is not
+     *         launched at startup, see {@link #isStartupLaunch}.
+     */
+    static ClusterResource findGuest(VirtualMachineSlave slave) {
+        if (!isStartupLaunch(slave)) {
+            return null;
+        }
+        Datacenter datacenter = Datacenter.getByDescription(slave.getDatacenterDescription());
+        if (datacenter == null || slave.getVirtualMachineId() == null) {
+            return null;
+        }
+        ClusterInventory inventory = datacenter.getInventory();
+        if (!inventory.isFresh(PREFETCH_MAX_AGE_MS)) {
+            return null;
+        }
+        ClusterResource guest = inventory.getGuest(slave.getVirtualMachineId());
+        if (guest == null
+                || !guest.getNode().equals(slave.getDatacenterNode())
+                || !guest.getType().equals(slave.getGuestType().getPath())) {
+            return null;
+        }
+        return guest;
+    }
+
+    /**
+     * @return true if the bulk state shows the guest of the agent running. Proxmox lists a guest suspended to RAM
+     *         as running too, so the answer is false for agents which may be suspended, see
+     *         {@link IdleSuspendRetentionStrategy#canSuspend}: only their live status tells.
+     */
+    static boolean isKnownRunning(VirtualMachineSlave slave) {
+        ClusterResource guest = findGuest(slave);
+        return guest != null && guest.isRunning() && !IdleSuspendRetentionStrategy.canSuspend(slave);
+    }
+
+    /**
+     * Called before the first launch of an agent at startup, see {@link #isStartupLaunch}: waits for the bulk
+     * state of its datacenter and for a launch slot. Agents whose guest is running and clean are given a slot
+     * before the others. {@link #afterFirstLaunch()} has to be called when the launch is done.
+     */
+    static void beforeFirstLaunch(Datacenter datacenter, VirtualMachineSlave slave, TaskListener listener)
+            throws InterruptedException {
+        try {
+            prefetch(datacenter).get();
+        } catch (ExecutionException e) {
+            // the launch asks for the state of its guest itself
+        }
+        boolean clean = isKnownRunning(slave) && !slave.isDirty();
+        synchronized (LAUNCH_SLOTS) {
+            if (freeLaunchSlots == 0) {
+                listener.getLogger()
+                        .println("Waiting for one of the " + MAX_PARALLEL_LAUNCHES
+                                + " parallel agent launches to finish");
+            }
+            if (clean) {
+                waitingCleanLaunches++;
+            }
+            try {
+                while (freeLaunchSlots == 0 || (!clean && waitingCleanLaunches > 0)) {
+                    LAUNCH_SLOTS.wait();
+                }
+                freeLaunchSlots--;
+            } finally {
+                if (clean) {
+                    waitingCleanLaunches--;
+                    LAUNCH_SLOTS.notifyAll();
+                }
+            }
+        }
+    }
+
+    static void afterFirstLaunch() {
+        synchronized (LAUNCH_SLOTS) {
+            freeLaunchSlots++;
+            LAUNCH_SLOTS.notifyAll();
+        }
+    }
+}
@@ -1,20 +1,29 @@
 package org.jenkinsci.plugins.proxmox;
 
+import hudson.AbortException;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.TaskListener;
-import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DelegatingComputerLauncher;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
 import java.io.ObjectStreamException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.security.auth.login.LoginException;
-import jenkins.model.Jenkins;
 import kong.unirest.json.JSONObject;
+import org.jenkinsci.plugins.proxmox.pve2api.CircuitBreaker;
 import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+import org.jenkinsci.plugins.proxmox.pve2api.GuestType;
+import org.jenkinsci.plugins.proxmox.pve2api.NodeLoad;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -36,10 +45,13 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
     private transient String snapshotName;
     private transient Boolean startVM;
     private transient int waitingTimeSecs;
+    private transient GuestType guestType = GuestType.QEMU;
+    private transient volatile Set<String> storages;
 
     public static enum RevertPolicy {
         AFTER_CONNECT("After connect to the virtual machine"),
-        BEFORE_JOB("Before every job executing on the virtual machine");
+        BEFORE_JOB("Before every job executing on the virtual machine"),
+        AFTER_JOB("After every job executing on the virtual machine, in the background");
 
         private final String label;
 
@@ -52,6 +64,26 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
         }
     }
 
+    public static enum ReadinessProbe {
+        FIXED_DELAY("Wait for the startup idle time"),
+        GUEST_AGENT("Until the QEMU guest agent responds"),
+        TCP_PORT("Until the port of the secondary launch method accepts connections"),
+        GUEST_AGENT_AND_TCP_PORT("Until both the QEMU guest agent and the port respond");
+
+        private final String label;
+
+        private ReadinessProbe(String probe) {
+            this.label = probe;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    static final long READINESS_POLL_INTERVAL_MS = 1000;
+    static final int READINESS_CONNECT_TIMEOUT_MS = 1000;
+
     private final RevertPolicy revertPolicy;
 
     @DataBoundConstructor
@@ -94,6 +126,22 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
         return this;
     }
 
+    /**
+     * Set by the agent, which keeps the guest type; it is not part of the launcher's configuration.
+     */
+    void setGuestType(GuestType guestType) {
+        this.guestType = guestType;
+    }
+
+    void setDatacenterNode(String datacenterNode) {
+        this.datacenterNode = datacenterNode;
+        this.storages = null;
+    }
+
+    GuestType getGuestType() {
+        return guestType == null ? GuestType.QEMU : guestType;
+    }
+
     /**
      * @return actual launcher
      * @deprecated use {@link #getLauncher()}
@@ -105,11 +153,9 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
 
     public Datacenter findDatacenterInstance() throws RuntimeException {
         if (datacenterDescription != null && virtualMachineId != null) {
-            for (Cloud cloud : Jenkins.get().clouds) {
-                if (cloud instanceof Datacenter
-                        && ((Datacenter) cloud).getDatacenterDescription().equals(datacenterDescription)) {
-                    return (Datacenter) cloud;
-                }
+            Datacenter datacenter = Datacenter.getByDescription(datacenterDescription);
+            if (datacenter != null) {
+                return datacenter;
             }
         }
         throw new RuntimeException("Could not find the proxmox datacenter instance!");
@@ -128,87 +174,559 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
     }
 
     public void startSlaveIfNeeded(TaskListener taskListener) throws InterruptedException {
-        String taskId = null;
-        JSONObject taskStatus = null;
+        startSlaveIfNeeded(null, taskListener);
+    }
+
+    private void startSlaveIfNeeded(SlaveComputer slaveComputer, TaskListener taskListener)
+            throws InterruptedException {
         try {
-            Datacenter datacenter = findDatacenterInstance();
-            Connector pve = datacenter.proxmoxInstance();
-            Boolean isvmIdRunning = pve.isQemuMachineRunning(datacenterNode, virtualMachineId);
-            if (!isvmIdRunning) {
-                taskListener.getLogger().println("Starting virtual machine...");
-                taskId = pve.startQemuMachine(datacenterNode, virtualMachineId);
-                taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId);
-                taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
-            }
+            startVirtualMachine(slaveComputer, taskListener);
         } catch (LoginException e) {
             taskListener.getLogger().println("ERROR: Login failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            taskListener.getLogger().println("ERROR: Starting the virtual machine failed: " + e);
+        }
+    }
+
+    /**
+     * Starts the virtual machine unless it is already running, without blocking the calling thread.
+     * A virtual machine which is suspended to RAM is resumed instead.
+     * Cancelling the future interrupts the start, so a start still waiting for admission leaves the queue.
+     * @return a future which completes once the virtual machine runs.
+     */
+    public CompletableFuture<Void> startSlaveIfNeededAsync(TaskListener taskListener) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        Future<?> start = Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                startVirtualMachine(null, taskListener);
+                result.complete(null);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((ignored, e) -> {
+            if (result.isCancelled()) {
+                start.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Starts the virtual machine unless it is already running, or resumes it if it is suspended to RAM.
+     * Waits for the admission controller on the calling thread, so an interrupted launch does not start the
+     * virtual machine later on.
+     * @param slaveComputer the computer whose {@link ProvisioningTimeline} records the start, may be null.
+     */
+    private void startVirtualMachine(SlaveComputer slaveComputer, TaskListener taskListener)
+            throws LoginException, InterruptedException {
+        Datacenter datacenter = findDatacenterInstance();
+        Connector pve = datacenter.proxmoxInstance();
+        JSONObject status = pve.getGuestStatus(datacenterNode, getGuestType(), virtualMachineId);
+        if (Connector.isSuspended(status)) {
+            resume(slaveComputer, pve, taskListener);
+            return;
+        }
+        if (status.getString("status").equals("running")) {
+            return;
+        }
+        taskListener.getLogger().println("Starting virtual machine...");
+        long started = System.currentTimeMillis();
+        JSONObject taskStatus;
+        try (AdmissionController.Permit permit = admit(datacenter, pve, "start", taskListener);
+                ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.START, datacenterNode)) {
+            String taskId = pve.startGuest(datacenterNode, getGuestType(), virtualMachineId);
+            taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
+        } catch (LoginException | RuntimeException e) {
+            ProvisioningTimeline.record(
+                    slaveComputer,
+                    ProvisioningTimeline.EventType.START,
+                    "Start failed: " + e,
+                    System.currentTimeMillis() - started);
+            throw e;
+        }
+        ProvisioningTimeline.record(
+                slaveComputer,
+                ProvisioningTimeline.EventType.START,
+                "Task " + taskStatus.optString("upid") + " finished: " + taskStatus.optString("exitstatus"),
+                System.currentTimeMillis() - started);
+        taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
+    }
+
+    /**
+     * Resumes a virtual machine suspended to RAM. It keeps its memory and its node, so it needs no admission.
+     */
+    private void resume(SlaveComputer slaveComputer, Connector pve, TaskListener taskListener)
+            throws LoginException, InterruptedException {
+        taskListener.getLogger().println("Resuming suspended virtual machine...");
+        long started = System.currentTimeMillis();
+        JSONObject taskStatus;
+        try (ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.RESUME, datacenterNode)) {
+            String taskId = pve.resumeGuest(datacenterNode, getGuestType(), virtualMachineId);
+            taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
+        } catch (LoginException | RuntimeException e) {
+            ProvisioningTimeline.record(
+                    slaveComputer,
+                    ProvisioningTimeline.EventType.RESUME,
+                    "Resume failed: " + e,
+                    System.currentTimeMillis() - started);
+            throw e;
+        }
+        ProvisioningTimeline.record(
+                slaveComputer,
+                ProvisioningTimeline.EventType.RESUME,
+                "Task " + taskStatus.optString("upid") + " finished: " + taskStatus.optString("exitstatus"),
+                System.currentTimeMillis() - started);
+        taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
+    }
+
+    /**
+     * Suspends or stops the virtual machine of an idle agent, see {@link IdleSuspendRetentionStrategy}.
+     * Containers cannot be suspended reliably, so they are always stopped.
+     * @return the final status of the task.
+     */
+    public JSONObject suspend(
+            SlaveComputer slaveComputer, IdleSuspendRetentionStrategy.IdleAction action, TaskListener taskListener)
+            throws LoginException, InterruptedException {
+        if (getGuestType() != GuestType.QEMU) {
+            action = IdleSuspendRetentionStrategy.IdleAction.STOP;
+        }
+        long started = System.currentTimeMillis();
+        JSONObject taskStatus;
+        try (ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.SUSPEND, datacenterNode)) {
+            Connector pve = findDatacenterInstance().proxmoxInstance();
+            String taskId;
+            if (action == IdleSuspendRetentionStrategy.IdleAction.STOP) {
+                taskId = pve.shutdownGuest(datacenterNode, getGuestType(), virtualMachineId);
+                taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
+                if (!taskStatus.optString("exitstatus").equals("OK")) {
+                    taskId = pve.stopGuest(datacenterNode, getGuestType(), virtualMachineId);
+                    taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
+                }
+            } else {
+                taskId = pve.suspendGuest(
+                        datacenterNode,
+                        getGuestType(),
+                        virtualMachineId,
+                        action == IdleSuspendRetentionStrategy.IdleAction.HIBERNATE);
+                // hibernating writes the memory to disk, which takes long enough to follow its log
+                taskStatus = pve.waitForTaskToFinish(
+                        datacenterNode,
+                        taskId,
+                        taskListener.getLogger(),
+                        action == IdleSuspendRetentionStrategy.IdleAction.HIBERNATE);
+            }
+        }
+        ProvisioningTimeline.record(
+                slaveComputer,
+                ProvisioningTimeline.EventType.SUSPEND,
+                action.name().toLowerCase() + " task " + taskStatus.optString("upid") + " finished: "
+                        + taskStatus.optString("exitstatus"),
+                System.currentTimeMillis() - started);
+        return taskStatus;
+    }
+
+    /**
+     * Waits until the admission controller of the datacenter lets a rollback, start or migration of this guest
+     * run on its node and storages.
+     */
+    private AdmissionController.Permit admit(
+            Datacenter datacenter, Connector pve, String operation, TaskListener taskListener)
+            throws InterruptedException {
+        Set<String> guestStorages;
+        try {
+            guestStorages = getStorages(pve);
+        } catch (LoginException | RuntimeException e) {
+            guestStorages = Collections.emptySet();
+        }
+        return datacenter.getAdmissionController().acquire(operation, datacenterNode, guestStorages, taskListener);
+    }
+
+    /**
+     * @return the storages holding the disks of the guest, read once per node.
+     */
+    private Set<String> getStorages(Connector pve) throws LoginException {
+        Set<String> guestStorages = storages;
+        if (guestStorages == null) {
+            guestStorages = pve.getGuestStorages(datacenterNode, getGuestType(), virtualMachineId);
+            storages = guestStorages;
         }
+        return guestStorages;
     }
 
     public void revertSnapshot(SlaveComputer slaveComputer, TaskListener taskListener) throws InterruptedException {
         String taskId = null;
         JSONObject taskStatus = null;
 
+        VirtualMachineSlave slave = slaveComputer.getNode() instanceof VirtualMachineSlave
+                ? (VirtualMachineSlave) slaveComputer.getNode()
+                : null;
+
         try {
             Datacenter datacenter = findDatacenterInstance();
             Connector pve = datacenter.proxmoxInstance();
 
-            if (!snapshotName.equals("current")) {
+            if (slave != null && !slave.isDirty()) {
+                if (!startVM || isGuestRunning(pve)) {
+                    taskListener
+                            .getLogger()
+                            .println("Virtual machine \"" + virtualMachineId
+                                    + "\" has not run anything since its last revert, skipping the revert");
+                    return;
+                }
+                taskListener
+                        .getLogger()
+                        .println("Virtual machine \"" + virtualMachineId
+                                + "\" has not run anything since its last revert, only starting it");
+                placeBeforeStart(slave, pve, taskListener);
+                startSlaveIfNeeded(slaveComputer, taskListener);
+            } else if (!snapshotName.equals("current")) {
                 taskListener
                         .getLogger()
                         .println("Virtual machine \"" + virtualMachineId + "\" (Name \""
                                 + slaveComputer.getDisplayName() + "\") is being reverted...");
-                // TODO: Check the status of this task (pass/fail) not just that its finished
-                taskId = pve.rollbackQemuMachineSnapshot(datacenterNode, virtualMachineId, snapshotName);
-                taskListener.getLogger().println("Proxmox returned: " + taskId);
+                // A snapshot with RAM state resumes the running guest, anything else needs a start and a boot.
+                JSONObject snapshot =
+                        pve.getGuestSnapshot(datacenterNode, getGuestType(), virtualMachineId, snapshotName);
+                boolean withRamState = snapshot != null && snapshot.optInt("vmstate", 0) == 1;
+                // a guest which may be migrated is rolled back stopped, and placed before it is started
+                boolean startWithRollback = startVM
+                        && !withRamState
+                        && pve.isRollbackStartSupported()
+                        && (slave == null || slave.getPlacementNodeList().isEmpty());
+                try (AdmissionController.Permit permit = admit(datacenter, pve, "roll back", taskListener);
+                        ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.REVERT, datacenterNode)) {
+                    long started = System.currentTimeMillis();
+                    taskId = pve.rollbackGuestSnapshot(
+                            datacenterNode, getGuestType(), virtualMachineId, snapshotName, startWithRollback);
+                    taskListener.getLogger().println("Proxmox returned: " + taskId);
 
-                // Wait for the task to finish
-                taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId);
+                    // Wait for the task to finish, rollbacks can take long enough to follow their log
+                    taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger(), true);
+                    ProvisioningTimeline.record(
+                            slaveComputer,
+                            ProvisioningTimeline.EventType.ROLLBACK,
+                            "Snapshot \"" + snapshotName + "\", task " + taskId + " finished: "
+                                    + taskStatus.optString("exitstatus"),
+                            System.currentTimeMillis() - started);
+                }
                 taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
-            }
+                boolean reverted = "OK".equals(taskStatus.optString("exitstatus"));
+                if (slave != null && reverted) {
+                    slave.setDirty(false);
+                }
 
-            if (startVM) {
-                startSlaveIfNeeded(taskListener);
+                if (withRamState && reverted) {
+                    taskListener
+                            .getLogger()
+                            .println("Snapshot \"" + snapshotName + "\" includes the RAM state, "
+                                    + "the virtual machine is already running");
+                    return;
+                }
+                if (startVM && !startWithRollback) {
+                    if (reverted) {
+                        placeBeforeStart(slave, pve, taskListener);
+                    }
+                    startSlaveIfNeeded(slaveComputer, taskListener);
+                }
+            } else {
+                // there is no snapshot to go back to, the current state is as clean as it gets
+                if (slave != null) {
+                    slave.setDirty(false);
+                }
+
+                if (startVM) {
+                    placeBeforeStart(slave, pve, taskListener);
+                    startSlaveIfNeeded(slaveComputer, taskListener);
+                }
             }
 
         } catch (LoginException e) {
             taskListener.getLogger().println("ERROR: Login failed: " + e.getMessage());
         }
 
+        // a clone runs now, so it can be given its connection details before its port is probed
+        if (slave instanceof ProvisionedVirtualMachineSlave && startVM) {
+            ((ProvisionedVirtualMachineSlave) slave).prepareConnection(slaveComputer, taskListener);
+        }
+
         // Ignore the wait period for a JNLP agent as it connects back to the Jenkins instance.
         if (!(launcher instanceof JNLPLauncher)) {
-            Thread.sleep(waitingTimeSecs * 1000);
+            try (ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.BOOT_WAIT, datacenterNode)) {
+                waitUntilReady(slaveComputer, taskListener);
+            }
+        }
+    }
+
+    /**
+     * Migrates a stopped guest away from its node if the node is overloaded and one of the agent's placement
+     * nodes is less loaded. Only called right before the guest is started. The migration is offline, so running
+     * and suspended guests stay where they are, and so do guests with disks on storage of their node, whose
+     * snapshots cannot always be migrated.
+     */
+    void placeBeforeStart(VirtualMachineSlave slave, Connector pve, TaskListener taskListener)
+            throws LoginException, InterruptedException {
+        if (slave == null || slave.getPlacementNodeList().isEmpty()) {
+            return;
+        }
+        if (!"stopped".equals(pve.getGuestStatus(datacenterNode, getGuestType(), virtualMachineId)
+                .optString("status"))) {
+            return;
+        }
+        NodeLoad target = NodePlacement.chooseNode(
+                pve, datacenterNode, slave.getPlacementNodeList(), slave.getOverloadThreshold() / 100.0);
+        if (target == null || target.getNode().equals(datacenterNode)) {
+            return;
+        }
+        if (!isOnSharedStorage(pve)) {
+            taskListener
+                    .getLogger()
+                    .println("Node \"" + datacenterNode + "\" is overloaded, but virtual machine \""
+                            + virtualMachineId + "\" has disks on storage of the node, not migrating it");
+            return;
+        }
+
+        taskListener
+                .getLogger()
+                .println("Node \"" + datacenterNode + "\" is overloaded, migrating virtual machine \""
+                        + virtualMachineId + "\" to " + target);
+        JSONObject taskStatus;
+        try (AdmissionController.Permit permit = admit(findDatacenterInstance(), pve, "migrate", taskListener)) {
+            long started = System.currentTimeMillis();
+            String taskId = pve.migrateGuest(datacenterNode, getGuestType(), virtualMachineId, target.getNode());
+            taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger(), true);
+            ProvisioningTimeline.record(
+                    slave.toComputer(),
+                    ProvisioningTimeline.EventType.MIGRATE,
+                    "To node \"" + target.getNode() + "\", task " + taskId + " finished: "
+                            + taskStatus.optString("exitstatus"),
+                    System.currentTimeMillis() - started);
+        }
+        taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
+        if (!"OK".equals(taskStatus.optString("exitstatus"))) {
+            taskListener
+                    .getLogger()
+                    .println("WARNING: Migration failed, starting on node \"" + datacenterNode + "\"");
+            return;
+        }
+        try {
+            slave.moveToNode(target.getNode());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the new node of agent " + slave.getNodeName(), e);
+        }
+    }
+
+    private boolean isOnSharedStorage(Connector pve) throws LoginException {
+        return pve.getSharedStorages().containsAll(getStorages(pve));
+    }
+
+    /**
+     * Waits until the readiness probe of the agent succeeds, at most for the startup idle time.
+     * Without a probe, the full startup idle time is waited.
+     */
+    void waitUntilReady(SlaveComputer slaveComputer, TaskListener taskListener) throws InterruptedException {
+        ReadinessProbe probe = ReadinessProbe.FIXED_DELAY;
+        if (slaveComputer.getNode() instanceof VirtualMachineSlave) {
+            probe = ((VirtualMachineSlave) slaveComputer.getNode()).getReadinessProbe();
+        }
+        boolean checkGuestAgent =
+                probe == ReadinessProbe.GUEST_AGENT || probe == ReadinessProbe.GUEST_AGENT_AND_TCP_PORT;
+        boolean checkPort = probe == ReadinessProbe.TCP_PORT || probe == ReadinessProbe.GUEST_AGENT_AND_TCP_PORT;
+        InetSocketAddress address = checkPort ? getProbeAddress() : null;
+        if (checkPort && address == null) {
+            taskListener
+                    .getLogger()
+                    .println("WARNING: The secondary launch method has no host and port to probe, "
+                            + "ignoring the port probe");
+            checkPort = false;
+        }
+        if (!checkGuestAgent && !checkPort) {
+            Thread.sleep(waitingTimeSecs * 1000L);
+            ProvisioningTimeline.record(
+                    slaveComputer, ProvisioningTimeline.EventType.READINESS, "Fixed delay", waitingTimeSecs * 1000L);
+            return;
+        }
+
+        Connector pve = findDatacenterInstance().proxmoxInstance();
+        long start = System.currentTimeMillis();
+        long deadline = start + waitingTimeSecs * 1000L;
+        while (true) {
+            boolean ready = (!checkGuestAgent || isGuestAgentResponding(pve))
+                    && (!checkPort || isPortOpen(address));
+            if (ready) {
+                taskListener
+                        .getLogger()
+                        .println("Virtual machine is ready after " + (System.currentTimeMillis() - start) + " ms");
+                ProvisioningTimeline.record(
+                        slaveComputer,
+                        ProvisioningTimeline.EventType.READINESS,
+                        probe + " probe succeeded",
+                        System.currentTimeMillis() - start);
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                taskListener
+                        .getLogger()
+                        .println("WARNING: Virtual machine not ready after " + waitingTimeSecs
+                                + " seconds, launching anyway");
+                ProvisioningTimeline.record(
+                        slaveComputer,
+                        ProvisioningTimeline.EventType.READINESS,
+                        probe + " probe timed out",
+                        System.currentTimeMillis() - start);
+                return;
+            }
+            Thread.sleep(READINESS_POLL_INTERVAL_MS);
+        }
+    }
+
+    private boolean isGuestAgentResponding(Connector pve) {
+        try {
+            if (getGuestType() == GuestType.LXC) {
+                // containers have no guest agent, they run the guest's init directly
+                return pve.isGuestRunning(datacenterNode, GuestType.LXC, virtualMachineId);
+            }
+            return pve.pingQemuGuestAgent(datacenterNode, virtualMachineId);
+        } catch (LoginException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean isPortOpen(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            // resolve on every attempt, the guest may register its address while it boots
+            socket.connect(
+                    new InetSocketAddress(address.getHostString(), address.getPort()), READINESS_CONNECT_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Launchers connecting to the agent, like the SSH launcher, expose the agent's host and port as bean
+     * properties. They are read reflectively, so this plugin does not depend on a specific launcher.
+     * @return the address to probe, or null if the launcher has no host.
+     */
+    InetSocketAddress getProbeAddress() {
+        try {
+            Object host = launcher.getClass().getMethod("getHost").invoke(launcher);
+            if (!(host instanceof String) || ((String) host).isEmpty()) {
+                return null;
+            }
+            int port = 22;
+            try {
+                Object launcherPort = launcher.getClass().getMethod("getPort").invoke(launcher);
+                if (launcherPort instanceof Number && ((Number) launcherPort).intValue() > 0) {
+                    port = ((Number) launcherPort).intValue();
+                }
+            } catch (NoSuchMethodException e) {
+                // keep the SSH default
+            }
+            return InetSocketAddress.createUnresolved((String) host, port);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener taskListener)
             throws IOException, InterruptedException {
-        if (revertPolicy == RevertPolicy.AFTER_CONNECT) {
-            revertSnapshot(slaveComputer, taskListener);
-        } else {
-            if (startVM) {
-                startSlaveIfNeeded(taskListener);
+        // do not tie up a launcher thread while the API is known to be down
+        CircuitBreaker breaker = findDatacenterInstance().proxmoxInstance().getCircuitBreaker();
+        if (breaker.getRetryAfterMillis() > 0) {
+            throw new AbortException("The Proxmox API keeps failing, not launching for another "
+                    + (breaker.getRetryAfterMillis() + 999) / 1000 + " seconds");
+        }
+        boolean firstLaunch = slaveComputer instanceof VirtualMachineSlaveComputer
+                && slaveComputer.getNode() instanceof VirtualMachineSlave
+                && StartupReconciliation.isStartupLaunch((VirtualMachineSlave) slaveComputer.getNode())
+                && ((VirtualMachineSlaveComputer) slaveComputer).beginLaunch();
+        if (firstLaunch) {
+            try {
+                StartupReconciliation.beforeFirstLaunch(
+                        findDatacenterInstance(), (VirtualMachineSlave) slaveComputer.getNode(), taskListener);
+            } catch (InterruptedException e) {
+                ((VirtualMachineSlaveComputer) slaveComputer).endLaunch();
+                throw e;
+            }
+        }
+        try {
+            if (revertPolicy == RevertPolicy.AFTER_CONNECT) {
+                revertSnapshot(slaveComputer, taskListener);
+            } else {
+                if (startVM && !isKnownRunning(slaveComputer)) {
+                    try {
+                        Connector pve = findDatacenterInstance().proxmoxInstance();
+                        if (slaveComputer.getNode() instanceof VirtualMachineSlave) {
+                            placeBeforeStart((VirtualMachineSlave) slaveComputer.getNode(), pve, taskListener);
+                        }
+                        startSlaveIfNeeded(slaveComputer, taskListener);
+                    } catch (LoginException e) {
+                        taskListener.getLogger().println("ERROR: Login failed: " + e.getMessage());
+                    }
+                }
+            }
+
+            long started = System.currentTimeMillis();
+            boolean launched = false;
+            try (ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.CONNECT, datacenterNode)) {
+                launcher.launch(slaveComputer, taskListener);
+                launched = true;
+            } finally {
+                ProvisioningTimeline.record(
+                        slaveComputer,
+                        ProvisioningTimeline.EventType.CONNECT,
+                        launched ? launcher.getClass().getSimpleName() + " finished" : "Launch failed",
+                        System.currentTimeMillis() - started);
+            }
+        } finally {
+            if (firstLaunch) {
+                ((VirtualMachineSlaveComputer) slaveComputer).endLaunch();
+                StartupReconciliation.afterFirstLaunch();
             }
         }
+    }
 
-        launcher.launch(slaveComputer, taskListener);
+    /**
+     * Reads the live status: the bulk state shows a guest suspended to RAM as running, but it has to be resumed
+     * before it can be used.
+     * @return true if the guest runs and is not suspended.
+     */
+    private boolean isGuestRunning(Connector pve) throws LoginException {
+        return pve.isGuestRunning(datacenterNode, getGuestType(), virtualMachineId);
+    }
+
+    /**
+     * @return true if the state read in bulk at startup shows the guest running. Otherwise the state is read by
+     *         {@link #startSlaveIfNeeded}, which also resumes a suspended guest. The bulk state cannot tell a
+     *         guest suspended to RAM from a running one, so it is not used for agents which may be suspended.
+     */
+    private boolean isKnownRunning(Computer computer) {
+        if (computer instanceof VirtualMachineSlaveComputer
+                && ((VirtualMachineSlaveComputer) computer).isInFirstLaunch()
+                && computer.getNode() instanceof VirtualMachineSlave) {
+            VirtualMachineSlave slave = (VirtualMachineSlave) computer.getNode();
+            return StartupReconciliation.isKnownRunning(slave);
+        }
+        return false;
     }
 
     public void shutdown(SlaveComputer slaveComputer, TaskListener taskListener) {
         String taskId = null;
         JSONObject taskStatus = null;
+        long started = System.currentTimeMillis();
 
         // try to gracefully shutdown the virtual machine
-        try {
+        try (ProxmoxMetrics.Phase phase = ProxmoxMetrics.startPhase(ProxmoxMetrics.SHUTDOWN, datacenterNode)) {
             taskListener
                     .getLogger()
                     .println("Virtual machine \"" + virtualMachineId + "\" (slave \"" + slaveComputer.getDisplayName()
                             + "\") is being shutdown.");
             Datacenter datacenter = findDatacenterInstance();
             Connector pve = datacenter.proxmoxInstance();
-            taskId = pve.shutdownQemuMachine(datacenterNode, virtualMachineId);
-            taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId);
+            taskId = pve.shutdownGuest(datacenterNode, getGuestType(), virtualMachineId);
+            taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
             if (!taskStatus.getString("exitstatus").equals("OK")) {
                 // Graceful shutdown failed, so doing a stop.
                 taskListener
@@ -216,10 +734,15 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
                         .println("Virtual machine \"" + virtualMachineId + "\" (slave \""
                                 + slaveComputer.getDisplayName()
                                 + "\") was not able to shutdown, doing a stop instead");
-                taskId = pve.stopQemuMachine(datacenterNode, virtualMachineId);
-                taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId);
+                taskId = pve.stopGuest(datacenterNode, getGuestType(), virtualMachineId);
+                taskStatus = pve.waitForTaskToFinish(datacenterNode, taskId, taskListener.getLogger());
             }
             taskListener.getLogger().println("Task finished! Status object: " + taskStatus.toString());
+            ProvisioningTimeline.record(
+                    slaveComputer,
+                    ProvisioningTimeline.EventType.SHUTDOWN,
+                    "Task " + taskId + " finished: " + taskStatus.optString("exitstatus"),
+                    System.currentTimeMillis() - started);
         } catch (InterruptedException e) {
             LOGGER.log(Level.SEVERE, "Waiting for task completion failed: " + e.getMessage());
         } catch (LoginException e) {
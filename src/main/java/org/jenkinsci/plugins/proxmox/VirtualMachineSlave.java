@@ -4,6 +4,7 @@ import static java.util.Collections.emptyList;
 import static java.util.Optional.ofNullable;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Slave;
@@ -17,11 +18,16 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.security.auth.login.LoginException;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.proxmox.VirtualMachineLauncher.ReadinessProbe;
 import org.jenkinsci.plugins.proxmox.VirtualMachineLauncher.RevertPolicy;
 import org.jenkinsci.plugins.proxmox.pve2api.Connector;
+import org.jenkinsci.plugins.proxmox.pve2api.GuestType;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -29,6 +35,10 @@ public class VirtualMachineSlave extends Slave {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlave.class.getName());
+
+    static final int DEFAULT_OVERLOAD_THRESHOLD = 80;
+
     private String datacenterDescription;
     private String datacenterNode;
     private String snapshotName;
@@ -36,6 +46,16 @@ public class VirtualMachineSlave extends Slave {
     private Boolean startVM;
     private int startupWaitingPeriodSeconds;
     private RevertPolicy revertPolicy;
+    private ReadinessProbe readinessProbe;
+    private GuestType guestType;
+    private String placementNodes;
+    private int overloadThreshold;
+
+    /**
+     * Whether the virtual machine may have run a job since its last successful snapshot revert.
+     * Null if unknown, e.g. for agents saved by older versions or just configured.
+     */
+    private Boolean dirty;
 
     @DataBoundConstructor
     public VirtualMachineSlave(
@@ -111,6 +131,116 @@ public class VirtualMachineSlave extends Slave {
         return revertPolicy;
     }
 
+    /**
+     * The launcher keeps its settings in transient fields, so rebuild it from the persisted agent settings.
+     */
+    @Override
+    protected Object readResolve() {
+        if (getLauncher() instanceof VirtualMachineLauncher) {
+            setLauncher(new VirtualMachineLauncher(
+                    ((VirtualMachineLauncher) getLauncher()).getLauncher(),
+                    datacenterDescription,
+                    datacenterNode,
+                    virtualMachineId,
+                    snapshotName,
+                    startVM,
+                    startupWaitingPeriodSeconds,
+                    revertPolicy));
+            ((VirtualMachineLauncher) getLauncher()).setGuestType(getGuestType());
+        }
+        return super.readResolve();
+    }
+
+    public ReadinessProbe getReadinessProbe() {
+        return readinessProbe == null ? ReadinessProbe.FIXED_DELAY : readinessProbe;
+    }
+
+    /**
+     * @param readinessProbe how to detect that the virtual machine is ready after a revert or start.
+     *                       The startup idle time is the upper bound of the wait.
+     */
+    @DataBoundSetter
+    public void setReadinessProbe(ReadinessProbe readinessProbe) {
+        this.readinessProbe = readinessProbe;
+    }
+
+    public GuestType getGuestType() {
+        return guestType == null ? GuestType.QEMU : guestType;
+    }
+
+    @DataBoundSetter
+    public void setGuestType(GuestType guestType) {
+        this.guestType = guestType;
+        if (getLauncher() instanceof VirtualMachineLauncher) {
+            ((VirtualMachineLauncher) getLauncher()).setGuestType(getGuestType());
+        }
+    }
+
+    public String getPlacementNodes() {
+        return placementNodes;
+    }
+
+    /**
+     * @param placementNodes the nodes the agent may be migrated to when its node is overloaded.
+     *                       Empty to keep the agent on its node.
+     */
+    @DataBoundSetter
+    public void setPlacementNodes(String placementNodes) {
+        this.placementNodes = Util.fixEmptyAndTrim(placementNodes);
+    }
+
+    public List<String> getPlacementNodeList() {
+        return NodePlacement.parseNodes(placementNodes);
+    }
+
+    /**
+     * @return the load in percent above which the node of a stopped agent is considered overloaded.
+     */
+    public int getOverloadThreshold() {
+        return overloadThreshold > 0 ? overloadThreshold : DEFAULT_OVERLOAD_THRESHOLD;
+    }
+
+    @DataBoundSetter
+    public void setOverloadThreshold(int overloadThreshold) {
+        this.overloadThreshold = overloadThreshold;
+    }
+
+    /**
+     * Records that the guest has been migrated to another node.
+     */
+    void moveToNode(String datacenterNode) throws IOException {
+        this.datacenterNode = datacenterNode;
+        if (getLauncher() instanceof VirtualMachineLauncher) {
+            ((VirtualMachineLauncher) getLauncher()).setDatacenterNode(datacenterNode);
+        }
+        save();
+    }
+
+    /**
+     * @return false only if the virtual machine is known not to have run anything since its last revert.
+     */
+    public boolean isDirty() {
+        return dirty == null || dirty;
+    }
+
+    /**
+     * Records whether the virtual machine has to be reverted. The state is saved with the agent, so it survives
+     * a restart of the controller; it is only written when it changes.
+     */
+    public void setDirty(boolean dirty) {
+        synchronized (this) {
+            if (this.dirty != null && this.dirty == dirty) {
+                return;
+            }
+            this.dirty = dirty;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the revert state of agent " + getNodeName(), e);
+        }
+    }
+
     public ComputerLauncher getDelegateLauncher() {
         return ((VirtualMachineLauncher) getLauncher()).getLauncher();
     }
@@ -175,13 +305,14 @@ public class VirtualMachineSlave extends Slave {
 
         public ListBoxModel doFillVirtualMachineIdItems(
                 @QueryParameter("datacenterDescription") String datacenterDescription,
-                @QueryParameter("datacenterNode") String datacenterNode) {
+                @QueryParameter("datacenterNode") String datacenterNode,
+                @QueryParameter("guestType") String guestType) {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
             ListBoxModel items = new ListBoxModel();
             items.add("[Select]", "");
             Datacenter datacenter = getDatacenterByDescription(datacenterDescription);
             if (datacenter != null) {
-                HashMap<String, Integer> machines = datacenter.getQemuMachines(datacenterNode);
+                HashMap<String, Integer> machines = datacenter.getGuests(datacenterNode, parseGuestType(guestType));
                 for (Map.Entry<String, Integer> me : machines.entrySet()) {
                     items.add(me.getKey().toString(), me.getValue().toString());
                 }
@@ -192,14 +323,15 @@ public class VirtualMachineSlave extends Slave {
         public ListBoxModel doFillSnapshotNameItems(
                 @QueryParameter("datacenterDescription") String datacenterDescription,
                 @QueryParameter("datacenterNode") String datacenterNode,
+                @QueryParameter("guestType") String guestType,
                 @QueryParameter("virtualMachineId") String virtualMachineId) {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
             ListBoxModel items = new ListBoxModel();
             items.add("[Select]", "");
             Datacenter datacenter = getDatacenterByDescription(datacenterDescription);
             if (datacenter != null && virtualMachineId != null && virtualMachineId.length() != 0) {
-                for (String snapshot :
-                        datacenter.getQemuMachineSnapshots(datacenterNode, Integer.parseInt(virtualMachineId))) {
+                for (String snapshot : datacenter.getGuestSnapshots(
+                        datacenterNode, parseGuestType(guestType), Integer.parseInt(virtualMachineId))) {
                     items.add(snapshot);
                 }
             }
@@ -234,6 +366,7 @@ public class VirtualMachineSlave extends Slave {
         public FormValidation doTestRollback(
                 @QueryParameter String datacenterDescription,
                 @QueryParameter String datacenterNode,
+                @QueryParameter String guestType,
                 @QueryParameter Integer virtualMachineId,
                 @QueryParameter String snapshotName) {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
@@ -241,23 +374,24 @@ public class VirtualMachineSlave extends Slave {
             if (datacenter == null) return FormValidation.error("Datacenter not found!");
             Connector pveApi = datacenter.proxmoxInstance();
             try {
-                String taskStatus = pveApi.rollbackQemuMachineSnapshot(datacenterNode, virtualMachineId, snapshotName);
+                String taskStatus = pveApi.rollbackGuestSnapshot(
+                        datacenterNode, parseGuestType(guestType), virtualMachineId, snapshotName, false);
                 return FormValidation.ok("Returned: " + taskStatus);
             } catch (LoginException e) {
                 return FormValidation.error("Login Failed: " + e.getMessage());
             }
         }
 
-        private Datacenter getDatacenterByDescription(String datacenterDescription) {
-            if (datacenterDescription != null && !datacenterDescription.equals("")) {
-                for (Cloud cloud : Jenkins.get().clouds) {
-                    if (cloud instanceof Datacenter
-                            && ((Datacenter) cloud).getDatacenterDescription().equals(datacenterDescription)) {
-                        return (Datacenter) cloud;
-                    }
-                }
+        private static GuestType parseGuestType(String guestType) {
+            try {
+                return guestType == null || guestType.isEmpty() ? GuestType.QEMU : GuestType.valueOf(guestType);
+            } catch (IllegalArgumentException e) {
+                return GuestType.QEMU;
             }
-            return null;
+        }
+
+        private Datacenter getDatacenterByDescription(String datacenterDescription) {
+            return Datacenter.getByDescription(datacenterDescription);
         }
     }
 }
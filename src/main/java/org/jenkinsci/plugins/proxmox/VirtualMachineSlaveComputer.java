@@ -1,22 +1,54 @@
 package org.jenkinsci.plugins.proxmox;
 
+import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Slave;
 import hudson.slaves.OfflineCause;
 import hudson.slaves.SlaveComputer;
-import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
 
 public class VirtualMachineSlaveComputer extends SlaveComputer {
 
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlaveComputer.class.getName());
+
+    private static final long IDLE_POLL_INTERVAL_MS = 200;
+    private static final long REVERT_RETRY_DELAY_MS = 60 * 1000;
+
     private AtomicBoolean isRevertingSnapshot = new AtomicBoolean(false);
 
+    /**
+     * A failed revert is not retried before this time, so a broken snapshot does not loop the agent
+     * through reverts.
+     */
+    private volatile long revertRetryAfter;
+
+    private final AtomicBoolean launched = new AtomicBoolean(false);
+    private final AtomicBoolean suspending = new AtomicBoolean(false);
+    private volatile boolean inFirstLaunch;
+
+    private final ProvisioningTimeline timeline = new ProvisioningTimeline(this);
+
     public VirtualMachineSlaveComputer(Slave slave) {
         super(slave);
+        addAction(timeline);
+    }
+
+    public ProvisioningTimeline getTimeline() {
+        return timeline;
+    }
+
+    @Override
+    public Future<?> disconnect(OfflineCause cause) {
+        timeline.record(ProvisioningTimeline.EventType.DISCONNECT, cause == null ? null : cause.toString(), -1);
+        return super.disconnect(cause);
     }
 
     @Override
@@ -29,46 +61,163 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
         super.tryReconnect();
     }
 
+    /**
+     * @return true for the first launch of this computer, which can use the state of its guest read at startup.
+     */
+    boolean beginLaunch() {
+        inFirstLaunch = launched.compareAndSet(false, true);
+        return inFirstLaunch;
+    }
+
+    void endLaunch() {
+        inFirstLaunch = false;
+    }
+
+    boolean isInFirstLaunch() {
+        return inFirstLaunch;
+    }
+
+    public boolean isRevertingSnapshot() {
+        return isRevertingSnapshot.get();
+    }
+
+    /**
+     * @return true if the agent is being disconnected and its guest suspended by
+     *         {@link IdleSuspendRetentionStrategy}, so it must not be launched yet.
+     */
+    public boolean isSuspending() {
+        return suspending.get();
+    }
+
+    /**
+     * @return false if a suspend is already running.
+     */
+    boolean beginSuspend() {
+        return suspending.compareAndSet(false, true);
+    }
+
+    void endSuspend() {
+        suspending.set(false);
+    }
+
+    /**
+     * @return true if the agent reverts its snapshot around every job and has to be reverted before the next one.
+     */
+    public boolean isRevertNeeded() {
+        final Node node = getNode();
+        return node instanceof VirtualMachineSlave && ((VirtualMachineSlave) node).isDirty() && isRevertingAroundJobs();
+    }
+
+    private boolean isRevertingAroundJobs() {
+        final Node node = getNode();
+        if (!(node instanceof VirtualMachineSlave)
+                || !(node.getLauncher() instanceof VirtualMachineLauncher)
+                || !node.getLauncher().isLaunchSupported()) {
+            return false;
+        }
+        VirtualMachineLauncher.RevertPolicy policy = ((VirtualMachineSlave) node).getRevertPolicy();
+        return policy == VirtualMachineLauncher.RevertPolicy.BEFORE_JOB
+                || policy == VirtualMachineLauncher.RevertPolicy.AFTER_JOB;
+    }
+
     @Override
     public void taskAccepted(Executor executor, Queue.Task task) {
         super.taskAccepted(executor, task);
-
         final Node node = getNode();
-
         if (node instanceof VirtualMachineSlave) {
-            final VirtualMachineSlave slave = (VirtualMachineSlave) node;
-            final VirtualMachineLauncher launcher = (VirtualMachineLauncher) slave.getLauncher();
+            ((VirtualMachineSlave) node).setDirty(true);
+        }
+    }
 
-            if (launcher.isLaunchSupported()
-                    && (slave.getRevertPolicy() == VirtualMachineLauncher.RevertPolicy.BEFORE_JOB)) {
-                try {
-                    isRevertingSnapshot.set(true);
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        super.taskCompleted(executor, task, durationMS);
+        revertAfterJob();
+    }
 
-                    final Future<?> disconnectFuture = disconnect(OfflineCause.create(
-                            Messages._VirtualMachineSlaveComputer_disconnectBeforeSnapshotRevert()));
-                    disconnectFuture.get();
-                    getListener().getLogger().println("INFO: agent disconnected");
+    @Override
+    public void taskCompletedWithProblems(
+            Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        super.taskCompletedWithProblems(executor, task, durationMS, problems);
+        revertAfterJob();
+    }
 
-                    launcher.revertSnapshot(this, getListener());
-                    getListener().getLogger().println("INFO: snapshot reverted");
+    /**
+     * Starts the revert right away for the {@link VirtualMachineLauncher.RevertPolicy#AFTER_JOB} policy,
+     * once the last running job is done, so the agent is clean before the next job arrives. With the
+     * {@link VirtualMachineLauncher.RevertPolicy#BEFORE_JOB} policy, only if a job is already waiting for it.
+     */
+    private void revertAfterJob() {
+        final Node node = getNode();
+        if (node instanceof VirtualMachineSlave
+                && isRevertNeeded()
+                && (((VirtualMachineSlave) node).getRevertPolicy() == VirtualMachineLauncher.RevertPolicy.AFTER_JOB
+                        || RevertBeforeJobDispatcher.hasWaitingItem(node))
+                && isOnline()
+                // the executor which just completed still counts as busy
+                && countBusy() <= 1) {
+            revertSnapshotInBackground();
+        }
+    }
 
-                    launcher.launch(this, getListener());
-                    getListener().getLogger().println("INFO: agent launched");
-                } catch (IOException | InterruptedException e) {
-                    getListener().getLogger().println("ERROR: Snapshot revert failed: " + e.getMessage());
-                } catch (ExecutionException e) {
-                    getListener()
-                            .getLogger()
-                            .println("ERROR: Exception while performing asynchronous disconnect: " + e.getMessage());
-                } finally {
-                    isRevertingSnapshot.set(false);
-                }
-            }
+    /**
+     * Reverts the snapshot in the background: disconnects the agent, rolls the virtual machine back and
+     * connects again. Jobs are held in the queue by {@link RevertBeforeJobDispatcher} until it is done.
+     * Does nothing if a revert is already running. Waits for running jobs to finish before disconnecting.
+     */
+    public void revertSnapshotInBackground() {
+        final Node node = getNode();
+        if (!(node instanceof VirtualMachineSlave) || !(node.getLauncher() instanceof VirtualMachineLauncher)) {
+            return;
         }
+        if (System.currentTimeMillis() < revertRetryAfter || !isRevertingSnapshot.compareAndSet(false, true)) {
+            return;
+        }
+        revertWhenIdle((VirtualMachineSlave) node, (VirtualMachineLauncher) node.getLauncher());
     }
 
-    @Override
-    protected Future<?> _connect(boolean forceReconnect) {
-        return super._connect(forceReconnect);
+    /**
+     * The executor of a job which just completed is busy until it has returned, so the idle check is repeated
+     * on the timer, without tying up a thread, until the revert can start.
+     */
+    private void revertWhenIdle(final VirtualMachineSlave slave, final VirtualMachineLauncher launcher) {
+        if (countBusy() > 0) {
+            Timer.get()
+                    .schedule(() -> revertWhenIdle(slave, launcher), IDLE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                final Future<?> disconnectFuture = disconnect(
+                        OfflineCause.create(Messages._VirtualMachineSlaveComputer_disconnectBeforeSnapshotRevert()));
+                disconnectFuture.get();
+                getListener().getLogger().println("INFO: agent disconnected");
+
+                launcher.revertSnapshot(this, getListener());
+                if (slave.isDirty()) {
+                    revertRetryAfter = System.currentTimeMillis() + REVERT_RETRY_DELAY_MS;
+                    getListener().getLogger().println("ERROR: Snapshot revert failed, retrying in a minute");
+                    Timer.get().schedule(this::revertAfterJob, REVERT_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                } else {
+                    getListener().getLogger().println("INFO: snapshot reverted");
+                }
+
+                // the launcher does not revert again for this policy, it only starts the VM if needed
+                connect(false).get();
+                getListener().getLogger().println("INFO: agent launched");
+            } catch (InterruptedException e) {
+                getListener().getLogger().println("ERROR: Snapshot revert failed: " + e.getMessage());
+            } catch (ExecutionException e) {
+                getListener()
+                        .getLogger()
+                        .println("ERROR: Exception while performing asynchronous disconnect or launch: "
+                                + e.getMessage());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Snapshot revert of " + getName() + " failed", e);
+            } finally {
+                isRevertingSnapshot.set(false);
+                Queue.getInstance().scheduleMaintenance();
+            }
+        });
     }
 }
@@ -0,0 +1,282 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.MultiStageTimeSeries.TimeScale;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.scheduler.CronTabList;
+import hudson.slaves.ComputerLauncher;
+import hudson.util.FormValidation;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A template virtual machine which is linked-cloned to provision agents for a label on demand.
+ */
+public class VirtualMachineTemplate extends AbstractDescribableImpl<VirtualMachineTemplate> {
+
+    private final String labelString;
+    private final String datacenterNode;
+    private final Integer templateVirtualMachineId;
+    private final String namePrefix;
+    private final String remoteFS;
+    private final int numExecutors;
+    private final int instanceCap;
+    private final int idleMinutes;
+    private final int startupWaitingPeriodSeconds;
+    private final ComputerLauncher launcher;
+    private int warmPoolSize;
+    private int peakWarmPoolSize;
+    private String peakSchedule;
+    private boolean followQueueLength;
+
+    private transient AtomicInteger pendingCount;
+
+    @DataBoundConstructor
+    public VirtualMachineTemplate(
+            String labelString,
+            String datacenterNode,
+            Integer templateVirtualMachineId,
+            String namePrefix,
+            String remoteFS,
+            int numExecutors,
+            int instanceCap,
+            int idleMinutes,
+            int startupWaitingPeriodSeconds,
+            ComputerLauncher launcher) {
+        this.labelString = Util.fixNull(labelString).trim();
+        this.datacenterNode = datacenterNode;
+        this.templateVirtualMachineId = templateVirtualMachineId;
+        this.namePrefix = Util.fixEmptyAndTrim(namePrefix) == null ? "proxmox" : namePrefix.trim();
+        this.remoteFS = remoteFS;
+        this.numExecutors = Math.max(numExecutors, 1);
+        this.instanceCap = instanceCap;
+        this.idleMinutes = idleMinutes;
+        this.startupWaitingPeriodSeconds = startupWaitingPeriodSeconds;
+        this.launcher = launcher;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getDatacenterNode() {
+        return datacenterNode;
+    }
+
+    public Integer getTemplateVirtualMachineId() {
+        return templateVirtualMachineId;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public int getStartupWaitingPeriodSeconds() {
+        return startupWaitingPeriodSeconds;
+    }
+
+    public ComputerLauncher getLauncher() {
+        return launcher;
+    }
+
+    /**
+     * @return a copy of the launch method for a new clone. Launchers keep the state of their connection, and the
+     *         clone's copy is given the clone's connection details, so clones never share one.
+     */
+    ComputerLauncher newLauncher() {
+        return (ComputerLauncher) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(launcher));
+    }
+
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        this.warmPoolSize = Math.max(warmPoolSize, 0);
+    }
+
+    public int getPeakWarmPoolSize() {
+        return peakWarmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setPeakWarmPoolSize(int peakWarmPoolSize) {
+        this.peakWarmPoolSize = Math.max(peakWarmPoolSize, 0);
+    }
+
+    public String getPeakSchedule() {
+        return peakSchedule;
+    }
+
+    @DataBoundSetter
+    public void setPeakSchedule(String peakSchedule) {
+        this.peakSchedule = Util.fixEmptyAndTrim(peakSchedule);
+    }
+
+    public boolean isFollowQueueLength() {
+        return followQueueLength;
+    }
+
+    @DataBoundSetter
+    public void setFollowQueueLength(boolean followQueueLength) {
+        this.followQueueLength = followQueueLength;
+    }
+
+    /**
+     * The number of idle agents to keep ready. This is the peak size while the peak schedule matches,
+     * raised to the recent queue length for the template's labels if enabled, and limited by the instance cap.
+     */
+    public int getWarmPoolTarget(Calendar now) {
+        int target = warmPoolSize;
+        if (peakSchedule != null) {
+            try {
+                if (CronTabList.create(peakSchedule).check(now)) {
+                    target = Math.max(target, peakWarmPoolSize);
+                }
+            } catch (IllegalArgumentException e) {
+                // invalid schedules are reported by the form validation
+            }
+        }
+        if (followQueueLength) {
+            float queueLength = 0;
+            for (LabelAtom atom : getLabelSet()) {
+                queueLength = Math.max(queueLength, atom.loadStatistics.queueLength.getLatest(TimeScale.MIN));
+            }
+            target = Math.max(target, (int) Math.ceil(queueLength));
+        }
+        if (instanceCap > 0) {
+            target = Math.min(target, instanceCap);
+        }
+        return target;
+    }
+
+    public Set<LabelAtom> getLabelSet() {
+        return Label.parse(labelString);
+    }
+
+    /**
+     * Unlabeled templates only serve jobs without a label restriction.
+     */
+    public boolean matches(Label label) {
+        if (label == null) {
+            return labelString.isEmpty();
+        }
+        return label.matches(getLabelSet());
+    }
+
+    /**
+     * Agents of this template which are being cloned but have not been added to Jenkins yet.
+     */
+    AtomicInteger getPendingCount() {
+        if (pendingCount == null) {
+            pendingCount = new AtomicInteger();
+        }
+        return pendingCount;
+    }
+
+    /**
+     * @return the agents of this template which currently exist in Jenkins.
+     */
+    public int countProvisionedAgents(String datacenterDescription) {
+        int count = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof ProvisionedVirtualMachineSlave
+                    && ((ProvisionedVirtualMachineSlave) node).isProvisionedFrom(datacenterDescription, this)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the agents of this template which are ready or about to be ready to take a job,
+     *         including the ones still being cloned.
+     */
+    public int countIdleAgents(String datacenterDescription) {
+        int count = getPendingCount().get();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof ProvisionedVirtualMachineSlave
+                    && ((ProvisionedVirtualMachineSlave) node).isProvisionedFrom(datacenterDescription, this)) {
+                Computer computer = node.toComputer();
+                if (computer != null
+                        && computer.isAcceptingTasks()
+                        && computer.isIdle()
+                        && (computer.isOnline() || computer.isConnecting())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return how many more agents may be provisioned without exceeding the instance cap.
+     */
+    public int getRemainingCapacity(String datacenterDescription) {
+        if (instanceCap <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return instanceCap - countProvisionedAgents(datacenterDescription) - getPendingCount().get();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<VirtualMachineTemplate> {
+
+        @Override
+        public String getDisplayName() {
+            return "Proxmox virtual machine template";
+        }
+
+        public List<Descriptor<ComputerLauncher>> getLauncherDescriptors() {
+            return Jenkins.get().getDescriptorList(ComputerLauncher.class);
+        }
+
+        public FormValidation doCheckDatacenterNode(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) return FormValidation.error("Datacenter node not specified");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckTemplateVirtualMachineId(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckPeakSchedule(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) return FormValidation.ok();
+            try {
+                CronTabList.create(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error("Invalid schedule: " + e.getMessage());
+            }
+        }
+    }
+}
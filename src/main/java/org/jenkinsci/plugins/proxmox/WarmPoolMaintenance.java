@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.proxmox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Refills the warm pools of the {@link VirtualMachineTemplate}s, so that agents are booted and connected
+ * before jobs are waiting for them.
+ */
+@Extension
+public class WarmPoolMaintenance extends AsyncPeriodicWork {
+
+    public WarmPoolMaintenance() {
+        super("Proxmox warm pool maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Calendar now = Calendar.getInstance();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Datacenter) {
+                Datacenter datacenter = (Datacenter) cloud;
+                for (VirtualMachineTemplate template : datacenter.getTemplates()) {
+                    int missing = template.getWarmPoolTarget(now)
+                            - template.countIdleAgents(datacenter.getDatacenterDescription());
+                    missing = Math.min(missing, template.getRemainingCapacity(datacenter.getDatacenterDescription()));
+                    if (missing > 0) {
+                        listener.getLogger()
+                                .println("Provisioning " + missing + " warm pool agent(s) from template "
+                                        + template.getTemplateVirtualMachineId());
+                        datacenter.provisionWarmPool(template, missing);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Stops sending requests to an API which keeps failing. After {@link #FAILURE_THRESHOLD} consecutive requests
+ * failed with a connection error, a timeout or a gateway error, the breaker opens and requests fail right away.
+ * After {@link #OPEN_MS}, a single probe request is let through: if it succeeds the breaker closes, otherwise
+ * it stays open for another period.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    static final int FAILURE_THRESHOLD =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 5);
+    static final long OPEN_MS = SystemProperties.getLong(CircuitBreaker.class.getName() + ".openSeconds", 30L) * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final Consumer<State> onStateChange;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    /**
+     * @param onStateChange called with the new state, outside of the breaker's lock.
+     */
+    public CircuitBreaker(String name, Consumer<State> onStateChange) {
+        this.name = name;
+        this.onStateChange = onStateChange;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the time until the next probe request is let through, 0 if requests are allowed.
+     */
+    public synchronized long getRetryAfterMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openedAt + OPEN_MS - System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the request may be sent. Its outcome has to be reported with {@link #recordSuccess()} or
+     *         {@link #recordFailure()}.
+     */
+    public boolean allowRequest() {
+        State changed = null;
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() - openedAt < OPEN_MS) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    changed = state;
+                    probeInFlight = true;
+                    break;
+                case HALF_OPEN:
+                default:
+                    if (probeInFlight) {
+                        return false;
+                    }
+                    probeInFlight = true;
+                    break;
+            }
+        }
+        if (changed != null) {
+            notifyStateChange(changed);
+        }
+        return true;
+    }
+
+    public void recordSuccess() {
+        State changed = null;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                changed = state;
+            }
+        }
+        if (changed != null) {
+            notifyStateChange(changed);
+        }
+    }
+
+    public void recordFailure() {
+        State changed = null;
+        synchronized (this) {
+            consecutiveFailures++;
+            probeInFlight = false;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+                changed = state;
+            }
+        }
+        if (changed != null) {
+            notifyStateChange(changed);
+        }
+    }
+
+    private void notifyStateChange(State newState) {
+        if (newState == State.OPEN) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Proxmox API " + name + " keeps failing, pausing requests for " + OPEN_MS / 1000 + " seconds");
+        } else {
+            LOGGER.log(Level.INFO, "Proxmox API " + name + " circuit breaker is " + newState);
+        }
+        onStateChange.accept(newState);
+    }
+
+    /**
+     * Thrown instead of sending a request while the breaker is open.
+     */
+    public static class OpenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String name, long retryAfterMillis) {
+            super("Proxmox API " + name + " is unavailable, not sending requests for another "
+                    + (retryAfterMillis + 999) / 1000 + " seconds");
+        }
+    }
+}
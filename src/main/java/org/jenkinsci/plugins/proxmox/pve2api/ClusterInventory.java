@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.security.auth.login.LoginException;
+
+/**
+ * An in-memory index of the guests and nodes of a cluster, refreshed from a single {@code cluster/resources}
+ * request. Lookups never touch the network; callers which need the current state ask the API directly.
+ */
+public class ClusterInventory {
+
+    private final Connector connector;
+    private volatile Snapshot snapshot = new Snapshot(Collections.<ClusterResource>emptyList(), 0);
+    private final AtomicReference<CompletableFuture<Void>> pendingRefresh =
+            new AtomicReference<CompletableFuture<Void>>();
+
+    public ClusterInventory(Connector connector) {
+        this.connector = connector;
+    }
+
+    public void refresh() throws LoginException {
+        Connector.await(refreshAsync(RequestPriority.BACKGROUND));
+    }
+
+    /**
+     * Refreshes the inventory without blocking. Concurrent calls share a single request.
+     */
+    public CompletableFuture<Void> refreshAsync(RequestPriority priority) {
+        CompletableFuture<Void> pending = pendingRefresh.get();
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture<Void> refresh = new CompletableFuture<Void>();
+        pending = pendingRefresh.compareAndExchange(null, refresh);
+        if (pending != null) {
+            return pending;
+        }
+        // the state may change while the request is answered, so it counts from when it was sent
+        long requestedAt = System.currentTimeMillis();
+        connector.getClusterResourcesAsync(priority).whenComplete((resources, e) -> {
+            if (e == null) {
+                snapshot = new Snapshot(resources, requestedAt);
+            }
+            pendingRefresh.compareAndSet(refresh, null);
+            if (e == null) {
+                refresh.complete(null);
+            } else {
+                refresh.completeExceptionally(e);
+            }
+        });
+        return refresh;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch of the last refresh, 0 if it was never refreshed.
+     */
+    public long getTimestamp() {
+        return snapshot.timestamp;
+    }
+
+    public boolean isFresh(long maxAgeMs) {
+        return snapshot.timestamp > 0 && System.currentTimeMillis() - snapshot.timestamp <= maxAgeMs;
+    }
+
+    public List<String> getNodes() {
+        return new ArrayList<String>(snapshot.nodes.keySet());
+    }
+
+    public ClusterResource getNode(String node) {
+        return snapshot.nodes.get(node);
+    }
+
+    public ClusterResource getGuest(Integer vmid) {
+        return snapshot.guestsByVmid.get(vmid);
+    }
+
+    public ClusterResource getGuest(String name) {
+        return snapshot.guestsByName.get(name);
+    }
+
+    /**
+     * @param type {@code qemu} or {@code lxc}.
+     */
+    public List<ClusterResource> getGuests(String node, String type) {
+        List<ClusterResource> res = new ArrayList<ClusterResource>();
+        List<ClusterResource> guests = snapshot.guestsByNode.get(node);
+        if (guests == null) {
+            return res;
+        }
+        for (ClusterResource guest : guests) {
+            if (guest.getType().equals(type)) {
+                res.add(guest);
+            }
+        }
+        return res;
+    }
+
+    public List<ClusterResource> getGuestsByStatus(String status) {
+        List<ClusterResource> res = new ArrayList<ClusterResource>();
+        for (ClusterResource guest : snapshot.guestsByVmid.values()) {
+            if (guest.getStatus().equals(status)) {
+                res.add(guest);
+            }
+        }
+        return res;
+    }
+
+    private static final class Snapshot {
+        final long timestamp;
+        final Map<String, ClusterResource> nodes = new LinkedHashMap<String, ClusterResource>();
+        final Map<Integer, ClusterResource> guestsByVmid = new HashMap<Integer, ClusterResource>();
+        final Map<String, ClusterResource> guestsByName = new HashMap<String, ClusterResource>();
+        final Map<String, List<ClusterResource>> guestsByNode = new HashMap<String, List<ClusterResource>>();
+
+        Snapshot(List<ClusterResource> resources, long timestamp) {
+            this.timestamp = timestamp;
+            for (ClusterResource resource : resources) {
+                if (resource.getType().equals("node")) {
+                    nodes.put(resource.getNode(), resource);
+                } else if (resource.getVmid() != null) {
+                    guestsByVmid.put(resource.getVmid(), resource);
+                    if (resource.getName() != null) {
+                        guestsByName.put(resource.getName(), resource);
+                    }
+                    guestsByNode
+                            .computeIfAbsent(resource.getNode(), n -> new ArrayList<ClusterResource>())
+                            .add(resource);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+/**
+ * An entry of the {@code cluster/resources} listing, as observed at a point in time.
+ */
+public class ClusterResource {
+
+    private final String type;
+    private final String node;
+    private final Integer vmid;
+    private final String name;
+    private final String status;
+    private final boolean template;
+    private final long observedAt;
+
+    public ClusterResource(
+            String type, String node, Integer vmid, String name, String status, boolean template, long observedAt) {
+        this.type = type;
+        this.node = node;
+        this.vmid = vmid;
+        this.name = name;
+        this.status = status;
+        this.template = template;
+        this.observedAt = observedAt;
+    }
+
+    /**
+     * @return {@code qemu}, {@code lxc} or {@code node}.
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public Integer getVmid() {
+        return vmid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isTemplate() {
+        return template;
+    }
+
+    public boolean isRunning() {
+        return "running".equals(status);
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch when this state was read from the cluster.
+     */
+    public long getObservedAt() {
+        return observedAt;
+    }
+}
@@ -1,37 +1,121 @@
 package org.jenkinsci.plugins.proxmox.pve2api;
 
 import hudson.util.Secret;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import javax.security.auth.login.LoginException;
+import jenkins.util.Timer;
 import kong.unirest.HttpRequest;
 import kong.unirest.HttpResponse;
 import kong.unirest.JsonNode;
+import kong.unirest.RawResponse;
 import kong.unirest.Unirest;
 import kong.unirest.UnirestInstance;
+import kong.unirest.UnirestParsingException;
 import kong.unirest.json.JSONArray;
 import kong.unirest.json.JSONObject;
 
 public class Connector {
 
+    /**
+     * @deprecated tasks are polled by the {@link TaskWatcher} with an adaptive interval.
+     */
+    @Deprecated
     public static final long WAIT_TIME_MS = 1000;
 
+    /**
+     * Authentication tickets have a lifetime of 2 hours.
+     */
+    static final long AUTH_TICKET_LIFETIME_MS = TimeUnit.MINUTES.toMillis(120);
+
+    /**
+     * Tickets older than this are renewed in the background while they are still in use.
+     */
+    static final long AUTH_TICKET_RENEWAL_MS = TimeUnit.MINUTES.toMillis(90);
+
+    /**
+     * Tickets this close to their expiry are no longer used.
+     */
+    static final long AUTH_TICKET_EXPIRY_MARGIN_MS = TimeUnit.MINUTES.toMillis(1);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 60 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    static final long RETRY_BASE_DELAY_MS = 200;
+    static final long RETRY_MAX_DELAY_MS = 5000;
+
+    /**
+     * Statuses of pveproxy when it could not get an answer from the daemons behind it. Other errors, like 500
+     * for an invalid request, are final.
+     */
+    private static final Set<Integer> TRANSIENT_STATUSES = Set.of(502, 503, 504, 595, 596, 599);
+
+    /**
+     * Configuration keys of disks and container volumes.
+     */
+    private static final Pattern DISK_KEY =
+            Pattern.compile("(ide|sata|scsi|virtio|mp)\\d+|efidisk0|tpmstate0|rootfs");
+
+    /**
+     * The fields read from the entries of the listings.
+     */
+    private static final String[] NODE_FIELDS = {"node"};
+    private static final String[] GUEST_FIELDS = {"vmid", "name"};
+    private static final String[] SNAPSHOT_FIELDS = {"name"};
+    private static final String[] STORAGE_FIELDS = {"storage", "shared"};
+    private static final String[] CLUSTER_RESOURCE_FIELDS = {"type", "node", "vmid", "name", "status", "template"};
+
     protected Integer port;
     protected String username;
     protected String realm;
     protected Secret password;
     protected String baseURL;
 
-    private String authTicket;
-    private Date authTicketIssuedTimestamp;
-    private String csrfPreventionToken;
+    private final EndpointPool endpointPool;
+    private volatile List<String> configuredBaseURLs;
+
+    private volatile String apiTokenId;
+    private volatile Secret apiTokenSecret;
+    private volatile AuthTicket authTicket;
+    private volatile String pveVersion;
+    private volatile RequestListener requestListener = RequestListener.NONE;
+    private final AtomicReference<CompletableFuture<AuthTicket>> pendingLogin =
+            new AtomicReference<CompletableFuture<AuthTicket>>();
+    private final AtomicBoolean backgroundRenewal = new AtomicBoolean(false);
     private UnirestInstance unirest;
+    private final TaskWatcher taskWatcher = new TaskWatcher(this);
+    private final RequestThrottle requestThrottle = new RequestThrottle();
+    private final CircuitBreaker circuitBreaker;
+    private final AtomicLong retryCount = new AtomicLong();
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
 
     private static final Logger LOGGER = Logger.getLogger(Connector.class.getName());
 
@@ -39,8 +123,41 @@ public class Connector {
         this(hostname, username, realm, password, false);
     }
 
+    /**
+     * @param hostname the host, optionally with a port. An explicit {@code http://} scheme is accepted for
+     *                 test servers, the default is HTTPS.
+     */
     public Connector(String hostname, String username, String realm, Secret password, Boolean ignoreSSL) {
-        this.port = 8006;
+        this.baseURL = toBaseURL(hostname);
+        URI base = URI.create(baseURL);
+        this.port = base.getPort();
+        this.username = username;
+        this.realm = realm;
+        this.password = password;
+
+        this.unirest = Unirest.spawnInstance();
+        unirest.config().verifySsl(!ignoreSSL).reset();
+        unirest.config().connectTimeout(DEFAULT_CONNECT_TIMEOUT_MS).socketTimeout(DEFAULT_READ_TIMEOUT_MS);
+
+        this.endpointPool = new EndpointPool(baseURL);
+        this.configuredBaseURLs = List.of(baseURL);
+        this.circuitBreaker = new CircuitBreaker(
+                base.getHost() + ":" + port, state -> requestListener.onCircuitBreakerStateChange(state));
+    }
+
+    /**
+     * @param hostname the host, optionally with a port and an {@code http://} or {@code https://} scheme.
+     * @return the URL of the API on the host, ending with {@code /api2/json/}.
+     */
+    static String toBaseURL(String hostname) {
+        int port = 8006;
+        String scheme = "https";
+        if (hostname.startsWith("http://")) {
+            scheme = "http";
+            hostname = hostname.substring("http://".length());
+        } else if (hostname.startsWith("https://")) {
+            hostname = hostname.substring("https://".length());
+        }
         // Parse hostname for port information
         try {
             URI uri = new URI("https://" + hostname);
@@ -51,148 +168,1295 @@ public class Connector {
         } catch (URISyntaxException e) {
             e.printStackTrace();
         }
-        this.username = username;
-        this.realm = realm;
-        this.password = password;
+        return scheme + "://" + hostname + ":" + port + "/api2/json/";
+    }
 
-        this.unirest = Unirest.spawnInstance();
-        unirest.config().verifySsl(!ignoreSSL).reset();
+    /**
+     * Spreads the requests over further nodes of the cluster, besides the host given to the constructor.
+     * @param hostnames hosts in the format of the constructor.
+     */
+    public void setAdditionalEndpoints(List<String> hostnames) {
+        Set<String> baseURLs = new LinkedHashSet<String>();
+        baseURLs.add(baseURL);
+        for (String hostname : hostnames) {
+            if (!hostname.trim().isEmpty()) {
+                baseURLs.add(toBaseURL(hostname.trim()));
+            }
+        }
+        configuredBaseURLs = new ArrayList<String>(baseURLs);
+        endpointPool.setBaseURLs(baseURLs);
+    }
+
+    public EndpointPool getEndpointPool() {
+        return endpointPool;
+    }
 
-        this.authTicketIssuedTimestamp = null;
-        this.baseURL = "https://" + hostname + ":" + port.toString() + "/api2/json/";
+    /**
+     * Adds the online nodes of the cluster to the configured endpoints. The nodes are reached by the address
+     * they have in the cluster, with the scheme and port of the configured host.
+     * @return the number of endpoints.
+     */
+    public CompletableFuture<Integer> discoverEndpointsAsync() {
+        return getJSONResourceAsync("cluster/status", RequestPriority.BACKGROUND).thenApply(response -> {
+            URI base = URI.create(baseURL);
+            Set<String> baseURLs = new LinkedHashSet<String>(configuredBaseURLs);
+            for (String ip : parseOnlineNodeAddresses(response.getObject().getJSONArray("data"))) {
+                String host = ip.contains(":") ? "[" + ip + "]" : ip;
+                baseURLs.add(base.getScheme() + "://" + host + ":" + base.getPort() + "/api2/json/");
+            }
+            endpointPool.setBaseURLs(baseURLs);
+            return baseURLs.size();
+        });
     }
 
+    /**
+     * @param clusterStatus the entries of {@code cluster/status}: one for the cluster and one per node.
+     */
+    static List<String> parseOnlineNodeAddresses(JSONArray clusterStatus) {
+        List<String> res = new ArrayList<String>();
+        for (int i = 0; i < clusterStatus.length(); i++) {
+            JSONObject entry = clusterStatus.getJSONObject(i);
+            if (entry.optString("type").equals("node")
+                    && entry.optInt("online") == 1
+                    && !entry.optString("ip").isEmpty()) {
+                res.add(entry.getString("ip"));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Sets the time to wait for a connection and for the response to a request, before the request fails
+     * and is retried. Has to be called before the first request.
+     */
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        unirest.config().connectTimeout(connectTimeoutMs).socketTimeout(readTimeoutMs);
+    }
+
+    /**
+     * @param maxRetries how often a request is sent again after a connection error, a timeout or a gateway
+     *                   error. Requests which change something are only sent again if they did not reach
+     *                   the server.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(maxRetries, 0);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return how many requests were sent again after a transient failure.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Authenticates with an API token instead of a ticket, which needs neither a login nor a CSRF token.
+     * @param tokenId the full token id, {@code user@realm!tokenname}.
+     */
+    public void setApiToken(String tokenId, Secret tokenSecret) {
+        this.apiTokenSecret = tokenSecret;
+        this.apiTokenId = tokenId;
+    }
+
+    public boolean isUsingApiToken() {
+        return apiTokenId != null;
+    }
+
+    /**
+     * Requests a new authentication ticket. With an API token, this only verifies that the token is accepted.
+     * Concurrent calls share a single login request.
+     */
     public void login() throws LoginException {
-        JSONObject authTickets = unirest.post(baseURL + "access/ticket")
-                .field("username", username + "@" + realm)
-                .field("password", password.getPlainText())
-                .asJson()
-                .getBody()
-                .getObject();
+        await(loginAsync());
+    }
+
+    public CompletableFuture<Void> loginAsync() {
+        if (isUsingApiToken()) {
+            return JSONResourceAsync(new ApiRequest("GET", "version", null), RequestPriority.CRITICAL)
+                    .thenAccept(response -> {
+                        if (!response.isSuccess()) {
+                            throw new CompletionException(new LoginException(
+                                    "API token rejected: " + response.getStatus() + " " + response.getStatusText()));
+                        }
+                    });
+        }
+        return renewAuthTicket().thenAccept(ticket -> {});
+    }
+
+    private static AuthTicket parseAuthTicket(HttpResponse<JsonNode> response) {
         try {
-            JSONObject data = authTickets.getJSONObject("data");
-            authTicket = data.get("ticket").toString();
-            csrfPreventionToken = data.get("CSRFPreventionToken").toString();
-            authTicketIssuedTimestamp = new Date();
+            JSONObject data = response.getBody().getObject().getJSONObject("data");
+            return new AuthTicket(
+                    data.get("ticket").toString(),
+                    data.get("CSRFPreventionToken").toString(),
+                    System.currentTimeMillis());
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed reading JSON response", e);
-            throw new LoginException("Failed reading JSON response");
+            throw new CompletionException(new LoginException("Failed reading JSON response"));
+        }
+    }
+
+    /**
+     * Only one login is in flight at a time, other callers get the same future.
+     */
+    private CompletableFuture<AuthTicket> renewAuthTicket() {
+        CompletableFuture<AuthTicket> login = new CompletableFuture<AuthTicket>();
+        CompletableFuture<AuthTicket> inFlight = pendingLogin.compareAndExchange(null, login);
+        if (inFlight != null) {
+            return inFlight;
         }
+        requestAuthTicket(null, 0).thenApply(Connector::parseAuthTicket).whenComplete((ticket, error) -> {
+            if (error != null) {
+                login.completeExceptionally(error);
+            } else {
+                authTicket = ticket;
+                login.complete(ticket);
+            }
+            pendingLogin.compareAndSet(login, null);
+        });
+        return login;
+    }
+
+    /**
+     * Tickets are valid on every node of the cluster, so a login which cannot connect is tried on the other
+     * endpoints.
+     */
+    private CompletableFuture<HttpResponse<JsonNode>> requestAuthTicket(EndpointPool.Endpoint avoid, int attempt) {
+        EndpointPool.Endpoint endpoint = endpointPool.choose(avoid);
+        CompletableFuture<HttpResponse<JsonNode>> request;
+        try {
+            request = unirest.post(endpoint.getBaseURL() + "access/ticket")
+                    .field("username", username + "@" + realm)
+                    .field("password", password.getPlainText())
+                    .asJsonAsync();
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        return request.handle((response, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    if (isEndpointFailure(null, error)) {
+                        endpointPool.onFailure(endpoint);
+                    }
+                    if (isConnectFailure(error) && attempt + 1 < endpointPool.getEndpoints().size()) {
+                        return requestAuthTicket(endpoint, attempt + 1);
+                    }
+                    return CompletableFuture.<HttpResponse<JsonNode>>failedFuture(error);
+                })
+                .thenCompose(next -> next);
     }
 
     public void checkIfAuthTicketIsValid() throws LoginException {
-        // Authentication ticket has a lifetime of 2 hours, so login again when it expires
-        if (authTicketIssuedTimestamp == null
-                || authTicketIssuedTimestamp.getTime() <= (new Date().getTime() - (120 * 60 * 1000))) {
-            login();
+        if (!isUsingApiToken()) {
+            await(getAuthTicket());
         }
     }
 
-    private HttpResponse<JsonNode> JSONResource(HttpRequest req) throws LoginException {
-        checkIfAuthTicketIsValid();
-        return req.header("Cookie", "PVEAuthCookie=" + authTicket)
-                .header("CSRFPreventionToken", csrfPreventionToken)
-                .asJson();
+    /**
+     * @return a ticket which is valid for at least {@link #AUTH_TICKET_EXPIRY_MARGIN_MS}.
+     *         Tickets close to their expiry are renewed in the background before that.
+     */
+    private CompletableFuture<AuthTicket> getAuthTicket() {
+        AuthTicket ticket = authTicket;
+        long age = ticket == null ? Long.MAX_VALUE : System.currentTimeMillis() - ticket.issuedAt;
+        if (age >= AUTH_TICKET_LIFETIME_MS - AUTH_TICKET_EXPIRY_MARGIN_MS) {
+            return renewAuthTicket();
+        }
+        if (age >= AUTH_TICKET_RENEWAL_MS && backgroundRenewal.compareAndSet(false, true)) {
+            renewAuthTicket().whenComplete((renewed, error) -> {
+                if (error != null) {
+                    LOGGER.log(Level.WARNING, "Renewing the authentication ticket failed: " + error.getMessage());
+                }
+                backgroundRenewal.set(false);
+            });
+        }
+        return CompletableFuture.completedFuture(ticket);
     }
 
-    private JsonNode getJSONResource(String apiUrl) throws LoginException {
-        return JSONResource(unirest.get(baseURL + apiUrl)).getBody();
+    private static <T> CompletableFuture<HttpResponse<T>> sendAsync(
+            HttpRequest req, AuthTicket ticket, ResponseReader<T> reader) {
+        return reader.send(
+                req.headerReplace("Cookie", "PVEAuthCookie=" + ticket.ticket)
+                        .headerReplace("CSRFPreventionToken", ticket.csrfPreventionToken),
+                NO_CALLBACK);
     }
 
-    private JsonNode postJSONResource(String apiUrl, String body) throws LoginException {
-        return JSONResource(unirest.post(baseURL + apiUrl)
-                        .header("Content-Type", "application/x-www-form-urlencoded")
-                        .body(body))
-                .getBody();
+    private CompletableFuture<HttpResponse<JsonNode>> JSONResourceAsync(ApiRequest req, RequestPriority priority) {
+        return JSONResourceAsync(req, priority, AS_JSON);
+    }
+
+    /**
+     * Sends a request, retrying transient failures with a jittered exponential backoff, on another endpoint if
+     * there is one. Fails right away while the {@link CircuitBreaker} is open.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> JSONResourceAsync(
+            ApiRequest req, RequestPriority priority, ResponseReader<T> reader) {
+        if (!circuitBreaker.allowRequest()) {
+            return CompletableFuture.failedFuture(
+                    new CircuitBreaker.OpenException(baseURL, circuitBreaker.getRetryAfterMillis()));
+        }
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<HttpResponse<T>>();
+        sendWithRetries(req, priority, reader, 0, null, result);
+        return result.whenComplete((response, error) -> {
+            if (isTransientFailure(response, error)) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+        });
+    }
+
+    private <T> void sendWithRetries(
+            ApiRequest req,
+            RequestPriority priority,
+            ResponseReader<T> reader,
+            int attempt,
+            EndpointPool.Endpoint avoid,
+            CompletableFuture<HttpResponse<T>> result) {
+        EndpointPool.Endpoint[] used = new EndpointPool.Endpoint[1];
+        sendThrottled(req, priority, reader, avoid, used).whenComplete((response, error) -> {
+            if (attempt < maxRetries
+                    && !result.isDone()
+                    && isTransientFailure(response, error)
+                    && (req.isIdempotent() || isConnectFailure(error))) {
+                retryCount.incrementAndGet();
+                requestListener.onRetry(req.method, endpointTemplate(req.path));
+                Timer.get()
+                        .schedule(
+                                () -> sendWithRetries(req, priority, reader, attempt + 1, used[0], result),
+                                retryDelayMillis(attempt),
+                                TimeUnit.MILLISECONDS);
+            } else if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(response);
+            }
+        });
+    }
+
+    /**
+     * @return a random delay between half and all of the exponentially growing backoff, so clients which
+     *         failed at the same time do not retry at the same time.
+     */
+    static long retryDelayMillis(int attempt) {
+        long backoff = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+    }
+
+    static boolean isTransientFailure(HttpResponse<?> response, Throwable error) {
+        if (error != null) {
+            return isTransportFailure(error);
+        }
+        return response != null && TRANSIENT_STATUSES.contains(response.getStatus());
+    }
+
+    /**
+     * @return true if the error, or one of its causes, is an I/O error of the connection, like a timeout while
+     *         the body is read. A body which is not valid JSON is not one, sending the request again would not help.
+     */
+    static boolean isTransportFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonListingReader.MalformedJsonException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A node which cannot reach another node answers requests for it with 595 or 596, so only connection
+     * errors, timeouts and a failing pveproxy of the endpoint itself count against the endpoint.
+     */
+    static boolean isEndpointFailure(HttpResponse<?> response, Throwable error) {
+        if (error != null) {
+            return isTransientFailure(null, error);
+        }
+        return response != null && (response.getStatus() == 502 || response.getStatus() == 503);
+    }
+
+    /**
+     * @return true if the request failed before it reached the server, so it is safe to send it again.
+     */
+    static boolean isConnectFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof UnknownHostException
+                    || cause.getClass().getSimpleName().equals("ConnectTimeoutException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request to an endpoint of the {@link EndpointPool} once the {@link RequestThrottle} admits it.
+     * Every attempt passes here, so this is where the {@link RequestListener} is told about it.
+     * The latency of the endpoint is measured from sending the request, after any login, to the response headers
+     * of a streamed body, so a long listing does not make its endpoint look slow.
+     * @param used receives the endpoint the request was sent to.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendThrottled(
+            ApiRequest req,
+            RequestPriority priority,
+            ResponseReader<T> reader,
+            EndpointPool.Endpoint avoid,
+            EndpointPool.Endpoint[] used) {
+        long queuedAt = System.nanoTime();
+        long[] startedAt = new long[1];
+        long[] sentAt = new long[1];
+        long[] headersAt = new long[1];
+        ResponseReader<T> timed = (httpReq, onHeaders) -> {
+            sentAt[0] = System.nanoTime();
+            headersAt[0] = 0;
+            return reader.send(httpReq, () -> {
+                headersAt[0] = System.nanoTime();
+                onHeaders.run();
+            });
+        };
+        CompletableFuture<HttpResponse<T>> response =
+                requestThrottle.acquire(priority).thenCompose(admitted -> {
+                    EndpointPool.Endpoint endpoint = endpointPool.choose(avoid);
+                    used[0] = endpoint;
+                    endpoint.requestStarted();
+                    startedAt[0] = System.nanoTime();
+                    return JSONResourceAsync(req.build(unirest, endpoint.getBaseURL()), timed);
+                });
+        response.whenComplete((res, error) -> {
+            requestThrottle.release();
+            if (startedAt[0] != 0) {
+                long now = System.nanoTime();
+                used[0].requestFinished();
+                if (isEndpointFailure(res, error)) {
+                    endpointPool.onFailure(used[0]);
+                } else {
+                    long sent = sentAt[0] != 0 ? sentAt[0] : startedAt[0];
+                    long answered = headersAt[0] != 0 ? headersAt[0] : now;
+                    endpointPool.onSuccess(used[0], answered - sent);
+                }
+                requestListener.onResponse(
+                        req.method,
+                        endpointTemplate(req.path),
+                        res == null ? 0 : res.getStatus(),
+                        startedAt[0] - queuedAt,
+                        now - startedAt[0]);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Replaces the node names, guest ids, snapshot names and task ids in a request URL by placeholders.
+     * @return e.g. {@code nodes/{node}/qemu/{vmid}/snapshot/{snapshot}/rollback}.
+     */
+    static String endpointTemplate(String url) {
+        String path = url;
+        int api = path.indexOf("/api2/json/");
+        if (api >= 0) {
+            path = path.substring(api + "/api2/json/".length());
+        }
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        String[] segments = path.split("/");
+        for (int i = 1; i < segments.length; i++) {
+            String previous = segments[i - 1];
+            if (previous.equals("nodes")) {
+                segments[i] = "{node}";
+            } else if (previous.equals("qemu") || previous.equals("lxc")) {
+                segments[i] = "{vmid}";
+            } else if (previous.equals("snapshot")) {
+                segments[i] = "{snapshot}";
+            } else if (previous.equals("tasks")) {
+                segments[i] = "{upid}";
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    public void setRequestListener(RequestListener requestListener) {
+        this.requestListener = requestListener == null ? RequestListener.NONE : requestListener;
+    }
+
+    RequestListener getRequestListener() {
+        return requestListener;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> JSONResourceAsync(HttpRequest req, ResponseReader<T> reader) {
+        if (isUsingApiToken()) {
+            return reader.send(
+                    req.headerReplace(
+                            "Authorization", "PVEAPIToken=" + apiTokenId + "=" + apiTokenSecret.getPlainText()),
+                    NO_CALLBACK);
+        }
+        return getAuthTicket().thenCompose(ticket -> sendAsync(req, ticket, reader).thenCompose(response -> {
+            if (response.getStatus() == 401 && authTicket == ticket) {
+                // The ticket was rejected before its expiry, e.g. after a change of the cluster's auth key
+                requestListener.onRetry(req.getHttpMethod().name(), endpointTemplate(req.getUrl()));
+                return renewAuthTicket().thenCompose(renewed -> sendAsync(req, renewed, reader));
+            }
+            return CompletableFuture.completedFuture(response);
+        }));
+    }
+
+    /**
+     * How the body of a response is read: into a {@link JsonNode}, or streamed through a {@link BodyParser}.
+     */
+    private interface ResponseReader<T> {
+        /**
+         * @param onHeaders called once the response headers are in, if the reader sees them before the body.
+         */
+        CompletableFuture<HttpResponse<T>> send(HttpRequest<?> req, Runnable onHeaders);
+    }
+
+    private static final Runnable NO_CALLBACK = () -> {};
+
+    private static final ResponseReader<JsonNode> AS_JSON = (req, onHeaders) -> req.asJsonAsync();
+
+    /**
+     * Parses a response body while it is received.
+     */
+    interface BodyParser<T> {
+        T parse(Reader body) throws IOException;
+    }
+
+    /**
+     * The body of an error response is not parsed. A failure of the parser ends up as the parsing error of the
+     * response, except for a failure of the connection while the body is read: it fails the request like one
+     * before the response arrived, so it is retried and counts against the endpoint and the circuit breaker.
+     */
+    private static <T> ResponseReader<T> streamed(BodyParser<T> parser) {
+        return (req, onHeaders) -> req.asObjectAsync((RawResponse raw) -> {
+                    onHeaders.run();
+                    if (raw.getStatus() < 200 || raw.getStatus() >= 300) {
+                        return null;
+                    }
+                    try (Reader body = raw.getContentReader()) {
+                        return parser.parse(body);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .thenApply(response -> {
+                    Optional<UnirestParsingException> parsingError = response.getParsingError();
+                    if (parsingError.isPresent() && isTransportFailure(parsingError.get())) {
+                        throw new CompletionException(parsingError.get());
+                    }
+                    return response;
+                });
+    }
+
+    /**
+     * Sends a GET request whose response is parsed while it is received, without building a JSON tree.
+     */
+    private <T> CompletableFuture<T> getStreamedResourceAsync(
+            String apiUrl, RequestPriority priority, BodyParser<T> parser) {
+        return JSONResourceAsync(new ApiRequest("GET", apiUrl, null), priority, streamed(parser))
+                .thenApply(response -> {
+                    if (!response.isSuccess()) {
+                        throw new IllegalStateException("Proxmox API request " + endpointTemplate(apiUrl)
+                                + " failed: " + response.getStatus() + " " + response.getStatusText());
+                    }
+                    if (response.getParsingError().isPresent()) {
+                        throw response.getParsingError().get();
+                    }
+                    return response.getBody();
+                });
+    }
+
+    /**
+     * Waits for an asynchronous request and rethrows its failure.
+     */
+    static <T> T await(CompletableFuture<T> future) throws LoginException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<JsonNode> getJSONResourceAsync(String apiUrl, RequestPriority priority) {
+        return JSONResourceAsync(new ApiRequest("GET", apiUrl, null), priority).thenApply(HttpResponse::getBody);
+    }
+
+    private CompletableFuture<JsonNode> postJSONResourceAsync(String apiUrl, String body, RequestPriority priority) {
+        return JSONResourceAsync(new ApiRequest("POST", apiUrl, body), priority).thenApply(HttpResponse::getBody);
+    }
+
+    private JsonNode getJSONResource(String apiUrl, RequestPriority priority) throws LoginException {
+        return await(getJSONResourceAsync(apiUrl, priority));
+    }
+
+    private JsonNode postJSONResource(String apiUrl, String body, RequestPriority priority) throws LoginException {
+        return await(postJSONResourceAsync(apiUrl, body, priority));
+    }
+
+    private JsonNode putJSONResource(String apiUrl, String body, RequestPriority priority) throws LoginException {
+        return await(JSONResourceAsync(new ApiRequest("PUT", apiUrl, body), priority)
+                .thenApply(HttpResponse::getBody));
+    }
+
+    private JsonNode deleteJSONResource(String apiUrl, RequestPriority priority) throws LoginException {
+        return await(JSONResourceAsync(new ApiRequest("DELETE", apiUrl, null), priority)
+                .thenApply(HttpResponse::getBody));
+    }
+
+    public RequestThrottle getRequestThrottle() {
+        return requestThrottle;
+    }
+
+    private static String formBody(Map<String, String> parameters) {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (body.length() > 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8))
+                    .append('=')
+                    .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+        }
+        return body.toString();
     }
 
     public List<String> getNodes() throws LoginException {
+        return await(getNodesAsync());
+    }
+
+    public CompletableFuture<List<String>> getNodesAsync() {
+        return getStreamedResourceAsync("nodes", RequestPriority.BACKGROUND, Connector::parseNodes);
+    }
+
+    static List<String> parseNodes(Reader body) throws IOException {
         List<String> res = new ArrayList<String>();
-        JSONArray nodes = getJSONResource("nodes").getObject().getJSONArray("data");
-        for (int i = 0; i < nodes.length(); i++) {
-            res.add(nodes.getJSONObject(i).getString("node"));
-        }
+        JsonListingReader.read(body, NODE_FIELDS, values -> {
+            if (values[0] != null) {
+                res.add(values[0]);
+            }
+        });
         return res;
     }
 
     public JSONObject getTaskStatus(String node, String taskId) throws LoginException {
-        JsonNode response = getJSONResource("nodes/" + node + "/tasks/" + taskId + "/status");
-        return response.getObject().getJSONObject("data");
+        return await(getTaskStatusAsync(node, taskId));
+    }
+
+    public CompletableFuture<JSONObject> getTaskStatusAsync(String node, String taskId) {
+        return getJSONResourceAsync("nodes/" + node + "/tasks/" + taskId + "/status", RequestPriority.CRITICAL)
+                .thenApply(response -> response.getObject().getJSONObject("data"));
+    }
+
+    private static String guestPath(String node, GuestType type, Integer vmid) {
+        return "nodes/" + node + "/" + type.getPath() + "/" + vmid.toString();
+    }
+
+    public JSONObject getGuestStatus(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(getGuestStatusAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<JSONObject> getGuestStatusAsync(String node, GuestType type, Integer vmid) {
+        return getJSONResourceAsync(guestPath(node, type, vmid) + "/status/current", RequestPriority.NORMAL)
+                .thenApply(response -> response.getObject().getJSONObject("data"));
+    }
+
+    public Boolean isGuestRunning(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(isGuestRunningAsync(node, type, vmid));
+    }
+
+    /**
+     * @return a future which is completed with true if the guest runs. A guest suspended to RAM is listed as
+     *         running, but is not, it has to be resumed first, see {@link #isSuspended}.
+     */
+    public CompletableFuture<Boolean> isGuestRunningAsync(String node, GuestType type, Integer vmid) {
+        return getGuestStatusAsync(node, type, vmid)
+                .thenApply(status -> status.getString("status").equals("running") && !isSuspended(status));
     }
 
     public JSONObject getQemuMachineStatus(String node, Integer vmid) throws LoginException {
-        JsonNode response = getJSONResource("nodes/" + node + "/qemu/" + vmid + "/status/current");
-        return response.getObject().getJSONObject("data");
+        return getGuestStatus(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<JSONObject> getQemuMachineStatusAsync(String node, Integer vmid) {
+        return getGuestStatusAsync(node, GuestType.QEMU, vmid);
     }
 
     public Boolean isQemuMachineRunning(String node, Integer vmid) throws LoginException {
-        JSONObject QemuMachineStatus = null;
-        Boolean isRunning = true;
-        QemuMachineStatus = getQemuMachineStatus(node, vmid);
-        isRunning = (QemuMachineStatus.getString("status").equals("running"));
-        return isRunning;
+        return isGuestRunning(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<Boolean> isQemuMachineRunningAsync(String node, Integer vmid) {
+        return isGuestRunningAsync(node, GuestType.QEMU, vmid);
+    }
+
+    public JSONObject getLxcContainerStatus(String node, Integer vmid) throws LoginException {
+        return getGuestStatus(node, GuestType.LXC, vmid);
+    }
+
+    public Boolean isLxcContainerRunning(String node, Integer vmid) throws LoginException {
+        return isGuestRunning(node, GuestType.LXC, vmid);
+    }
+
+    /**
+     * Lists the running and finished tasks of a node which were started since the given time.
+     * Finished tasks have an {@code endtime}.
+     * @param since start time in seconds since the epoch.
+     */
+    public JSONArray getTasks(String node, long since, int limit) throws LoginException {
+        return await(getTasksAsync(node, since, limit));
+    }
+
+    public CompletableFuture<JSONArray> getTasksAsync(String node, long since, int limit) {
+        return getJSONResourceAsync(
+                        "nodes/" + node + "/tasks?source=all&since=" + since + "&limit=" + limit,
+                        RequestPriority.CRITICAL)
+                .thenApply(response -> response.getObject().getJSONArray("data"));
+    }
+
+    public TaskWatcher getTaskWatcher() {
+        return taskWatcher;
+    }
+
+    /**
+     * @return a future which is completed with the final status object of the task.
+     */
+    public CompletableFuture<JSONObject> watchTask(String node, String taskId) {
+        return taskWatcher.watch(node, taskId);
     }
 
     public JSONObject waitForTaskToFinish(String node, String taskId) throws LoginException, InterruptedException {
-        JSONObject lastTaskStatus = null;
-        Boolean isRunning = true;
-        while (isRunning) {
-            lastTaskStatus = getTaskStatus(node, taskId);
-            isRunning = (lastTaskStatus.getString("status").equals("running"));
-            if (isRunning) {
-                Thread.sleep(WAIT_TIME_MS);
+        return waitFor(waitForTaskToFinishAsync(node, taskId));
+    }
+
+    /**
+     * Waits for a task and prints its log once it finished.
+     */
+    public JSONObject waitForTaskToFinish(String node, String taskId, PrintStream log)
+            throws LoginException, InterruptedException {
+        return waitFor(waitForTaskToFinishAsync(node, taskId, log));
+    }
+
+    /**
+     * Waits for a task and prints its log, while it runs if {@code live} is set, see {@link TaskLogFollower}.
+     */
+    public JSONObject waitForTaskToFinish(String node, String taskId, PrintStream log, boolean live)
+            throws LoginException, InterruptedException {
+        return waitFor(waitForTaskToFinishAsync(node, taskId, log, live));
+    }
+
+    private static JSONObject waitFor(CompletableFuture<JSONObject> task)
+            throws LoginException, InterruptedException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
         }
-        return lastTaskStatus;
     }
 
-    public HashMap<String, Integer> getQemuMachines(String node) throws LoginException {
+    /**
+     * @return a future which is completed with the final status object of the task.
+     */
+    public CompletableFuture<JSONObject> waitForTaskToFinishAsync(String node, String taskId) {
+        return watchTask(node, taskId);
+    }
+
+    /**
+     * @return a future which is completed with the final status object of the task, once its log is printed.
+     */
+    public CompletableFuture<JSONObject> waitForTaskToFinishAsync(String node, String taskId, PrintStream log) {
+        return waitForTaskToFinishAsync(node, taskId, log, false);
+    }
+
+    /**
+     * @param live print the log while the task runs, for long tasks like rollbacks and migrations.
+     * @return a future which is completed with the final status object of the task, once its log is printed.
+     */
+    public CompletableFuture<JSONObject> waitForTaskToFinishAsync(
+            String node, String taskId, PrintStream log, boolean live) {
+        TaskLogFollower follower = new TaskLogFollower(this, node, taskId, log);
+        return live ? follower.follow(taskWatcher) : follower.printWhenDone(watchTask(node, taskId));
+    }
+
+    /**
+     * @param start the number of lines to skip.
+     * @return the lines of the task log, as objects with the line number {@code n} and the text {@code t}.
+     */
+    public CompletableFuture<JSONArray> getTaskLogAsync(String node, String taskId, int start, int limit) {
+        return getJSONResourceAsync(
+                        "nodes/" + node + "/tasks/" + taskId + "/log?start=" + start + "&limit=" + limit,
+                        RequestPriority.BACKGROUND)
+                .thenApply(response -> response.getObject().getJSONArray("data"));
+    }
+
+    /**
+     * @return the names and ids of the guests of the given type on a node.
+     */
+    public HashMap<String, Integer> getGuests(String node, GuestType type) throws LoginException {
+        return await(getGuestsAsync(node, type));
+    }
+
+    public CompletableFuture<HashMap<String, Integer>> getGuestsAsync(String node, GuestType type) {
+        return getStreamedResourceAsync(
+                "nodes/" + node + "/" + type.getPath(), RequestPriority.BACKGROUND, Connector::parseGuests);
+    }
+
+    /**
+     * @return the ids of the guests by name. Guests without a name are listed by their id.
+     */
+    static HashMap<String, Integer> parseGuests(Reader body) throws IOException {
         HashMap<String, Integer> res = new HashMap<String, Integer>();
-        JSONArray qemuVMs =
-                getJSONResource("nodes/" + node + "/qemu").getObject().getJSONArray("data");
-        for (int i = 0; i < qemuVMs.length(); i++) {
-            JSONObject vm = qemuVMs.getJSONObject(i);
-            res.put(vm.getString("name"), vm.getInt("vmid"));
-        }
+        JsonListingReader.read(body, GUEST_FIELDS, values -> {
+            if (values[0] != null) {
+                Integer vmid = Integer.valueOf(values[0]);
+                res.put(values[1] != null ? values[1] : values[0], vmid);
+            }
+        });
         return res;
     }
 
-    public List<String> getQemuMachineSnapshots(String node, Integer vmid) throws LoginException {
+    public HashMap<String, Integer> getQemuMachines(String node) throws LoginException {
+        return getGuests(node, GuestType.QEMU);
+    }
+
+    public CompletableFuture<HashMap<String, Integer>> getQemuMachinesAsync(String node) {
+        return getGuestsAsync(node, GuestType.QEMU);
+    }
+
+    public HashMap<String, Integer> getLxcContainers(String node) throws LoginException {
+        return getGuests(node, GuestType.LXC);
+    }
+
+    public List<String> getGuestSnapshots(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(getGuestSnapshotsAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<List<String>> getGuestSnapshotsAsync(String node, GuestType type, Integer vmid) {
+        return getStreamedResourceAsync(
+                guestPath(node, type, vmid) + "/snapshot", RequestPriority.BACKGROUND, Connector::parseSnapshots);
+    }
+
+    static List<String> parseSnapshots(Reader body) throws IOException {
         List<String> res = new ArrayList<String>();
-        JSONArray snapshots = getJSONResource("nodes/" + node + "/qemu/" + vmid.toString() + "/snapshot")
-                .getObject()
-                .getJSONArray("data");
-        for (int i = 0; i < snapshots.length(); i++) {
-            res.add(snapshots.getJSONObject(i).getString("name"));
-        }
+        JsonListingReader.read(body, SNAPSHOT_FIELDS, values -> {
+            if (values[0] != null) {
+                res.add(values[0]);
+            }
+        });
         return res;
     }
 
+    public List<String> getQemuMachineSnapshots(String node, Integer vmid) throws LoginException {
+        return getGuestSnapshots(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<List<String>> getQemuMachineSnapshotsAsync(String node, Integer vmid) {
+        return getGuestSnapshotsAsync(node, GuestType.QEMU, vmid);
+    }
+
+    public List<String> getLxcContainerSnapshots(String node, Integer vmid) throws LoginException {
+        return getGuestSnapshots(node, GuestType.LXC, vmid);
+    }
+
+    /**
+     * @return the entry of the snapshot listing, with the {@code vmstate} flag if the snapshot includes the RAM,
+     *         or null if there is no such snapshot.
+     */
+    public JSONObject getGuestSnapshot(String node, GuestType type, Integer vmid, String snapshotName)
+            throws LoginException {
+        return await(getGuestSnapshotAsync(node, type, vmid, snapshotName));
+    }
+
+    public CompletableFuture<JSONObject> getGuestSnapshotAsync(
+            String node, GuestType type, Integer vmid, String snapshotName) {
+        return getJSONResourceAsync(guestPath(node, type, vmid) + "/snapshot", RequestPriority.NORMAL)
+                .thenApply(response -> {
+                    JSONArray snapshots = response.getObject().getJSONArray("data");
+                    for (int i = 0; i < snapshots.length(); i++) {
+                        if (snapshotName.equals(snapshots.getJSONObject(i).optString("name"))) {
+                            return snapshots.getJSONObject(i);
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    public JSONObject getQemuMachineSnapshot(String node, Integer vmid, String snapshotName) throws LoginException {
+        return getGuestSnapshot(node, GuestType.QEMU, vmid, snapshotName);
+    }
+
+    /**
+     * @param start start the guest within the rollback task, see {@link #isRollbackStartSupported()}.
+     */
+    public String rollbackGuestSnapshot(String node, GuestType type, Integer vmid, String snapshotName, boolean start)
+            throws LoginException {
+        return await(rollbackGuestSnapshotAsync(node, type, vmid, snapshotName, start));
+    }
+
+    public CompletableFuture<String> rollbackGuestSnapshotAsync(
+            String node, GuestType type, Integer vmid, String snapshotName, boolean start) {
+        return postJSONResourceAsync(
+                        guestPath(node, type, vmid) + "/snapshot/" + snapshotName + "/rollback",
+                        start ? "start=1" : "",
+                        RequestPriority.CRITICAL)
+                .thenApply(response -> response.getObject().getString("data"));
+    }
+
     public String rollbackQemuMachineSnapshot(String node, Integer vmid, String snapshotName) throws LoginException {
-        return postJSONResource(
-                        "nodes/" + node + "/qemu/" + vmid.toString() + "/snapshot/" + snapshotName + "/rollback", "")
-                .getObject()
-                .getString("data");
+        return rollbackGuestSnapshot(node, GuestType.QEMU, vmid, snapshotName, false);
+    }
+
+    public CompletableFuture<String> rollbackQemuMachineSnapshotAsync(String node, Integer vmid, String snapshotName) {
+        return rollbackGuestSnapshotAsync(node, GuestType.QEMU, vmid, snapshotName, false);
+    }
+
+    public String rollbackQemuMachineSnapshot(String node, Integer vmid, String snapshotName, boolean start)
+            throws LoginException {
+        return rollbackGuestSnapshot(node, GuestType.QEMU, vmid, snapshotName, start);
+    }
+
+    public String rollbackLxcContainerSnapshot(String node, Integer vmid, String snapshotName, boolean start)
+            throws LoginException {
+        return rollbackGuestSnapshot(node, GuestType.LXC, vmid, snapshotName, start);
+    }
+
+    /**
+     * @return the version of the Proxmox VE API, e.g. {@code 8.1.4}. The version is requested once.
+     */
+    public String getVersion() throws LoginException {
+        String version = pveVersion;
+        if (version == null) {
+            version = getJSONResource("version", RequestPriority.NORMAL)
+                    .getObject()
+                    .getJSONObject("data")
+                    .getString("version");
+            pveVersion = version;
+        }
+        return version;
+    }
+
+    /**
+     * The {@code start} parameter of the snapshot rollback is available since Proxmox VE 7.2.
+     */
+    public boolean isRollbackStartSupported() {
+        try {
+            String[] parts = getVersion().split("[.-]");
+            int major = Integer.parseInt(parts[0]);
+            int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return major > 7 || (major == 7 && minor >= 2);
+        } catch (LoginException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not determine the Proxmox VE version", e);
+            return false;
+        }
+    }
+
+    private CompletableFuture<String> changeGuestStatusAsync(
+            String node, GuestType type, Integer vmid, String command) {
+        return changeGuestStatusAsync(node, type, vmid, command, "");
+    }
+
+    private CompletableFuture<String> changeGuestStatusAsync(
+            String node, GuestType type, Integer vmid, String command, String body) {
+        return postJSONResourceAsync(
+                        guestPath(node, type, vmid) + "/status/" + command, body, RequestPriority.CRITICAL)
+                .thenApply(response -> response.getObject().getString("data"));
+    }
+
+    public String startGuest(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(startGuestAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<String> startGuestAsync(String node, GuestType type, Integer vmid) {
+        return changeGuestStatusAsync(node, type, vmid, "start");
+    }
+
+    public String stopGuest(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(stopGuestAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<String> stopGuestAsync(String node, GuestType type, Integer vmid) {
+        return changeGuestStatusAsync(node, type, vmid, "stop");
+    }
+
+    public String shutdownGuest(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(shutdownGuestAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<String> shutdownGuestAsync(String node, GuestType type, Integer vmid) {
+        return changeGuestStatusAsync(node, type, vmid, "shutdown");
+    }
+
+    /**
+     * Suspends a running guest. A virtual machine suspended to RAM keeps running paused and is continued by
+     * {@link #resumeGuestAsync}; one suspended to disk (hibernated) is stopped and restores its state when it is
+     * started again.
+     * @param toDisk hibernate instead of suspending to RAM. Only supported for virtual machines.
+     * @return the id of the suspend task.
+     */
+    public String suspendGuest(String node, GuestType type, Integer vmid, boolean toDisk) throws LoginException {
+        return await(suspendGuestAsync(node, type, vmid, toDisk));
+    }
+
+    public CompletableFuture<String> suspendGuestAsync(String node, GuestType type, Integer vmid, boolean toDisk) {
+        return changeGuestStatusAsync(node, type, vmid, "suspend", toDisk ? "todisk=1" : "");
+    }
+
+    public String resumeGuest(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(resumeGuestAsync(node, type, vmid));
+    }
+
+    public CompletableFuture<String> resumeGuestAsync(String node, GuestType type, Integer vmid) {
+        return changeGuestStatusAsync(node, type, vmid, "resume");
+    }
+
+    /**
+     * @param status the current status of a guest, see {@link #getGuestStatusAsync}.
+     * @return true if the guest was suspended to RAM and has to be resumed, not started.
+     */
+    public static boolean isSuspended(JSONObject status) {
+        String qmpStatus = status.optString("qmpstatus");
+        return status.optString("status").equals("running")
+                && (qmpStatus.equals("paused") || qmpStatus.equals("suspended"));
     }
 
     public String startQemuMachine(String node, Integer vmid) throws LoginException {
-        return postJSONResource("nodes/" + node + "/qemu/" + vmid.toString() + "/status/start", "")
+        return startGuest(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<String> startQemuMachineAsync(String node, Integer vmid) {
+        return startGuestAsync(node, GuestType.QEMU, vmid);
+    }
+
+    public String stopQemuMachine(String node, Integer vmid) throws LoginException {
+        return stopGuest(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<String> stopQemuMachineAsync(String node, Integer vmid) {
+        return stopGuestAsync(node, GuestType.QEMU, vmid);
+    }
+
+    public String shutdownQemuMachine(String node, Integer vmid) throws LoginException {
+        return shutdownGuest(node, GuestType.QEMU, vmid);
+    }
+
+    public CompletableFuture<String> shutdownQemuMachineAsync(String node, Integer vmid) {
+        return shutdownGuestAsync(node, GuestType.QEMU, vmid);
+    }
+
+    public String startLxcContainer(String node, Integer vmid) throws LoginException {
+        return startGuest(node, GuestType.LXC, vmid);
+    }
+
+    public String stopLxcContainer(String node, Integer vmid) throws LoginException {
+        return stopGuest(node, GuestType.LXC, vmid);
+    }
+
+    public String shutdownLxcContainer(String node, Integer vmid) throws LoginException {
+        return shutdownGuest(node, GuestType.LXC, vmid);
+    }
+
+    /**
+     * @return true if the QEMU guest agent inside the virtual machine responds.
+     */
+    public boolean pingQemuGuestAgent(String node, Integer vmid) throws LoginException {
+        return await(pingQemuGuestAgentAsync(node, vmid));
+    }
+
+    public CompletableFuture<Boolean> pingQemuGuestAgentAsync(String node, Integer vmid) {
+        return JSONResourceAsync(
+                        new ApiRequest("POST", "nodes/" + node + "/qemu/" + vmid.toString() + "/agent/ping", null),
+                        RequestPriority.NORMAL)
+                .thenApply(HttpResponse::isSuccess);
+    }
+
+    /**
+     * Reads the addresses of the virtual machine from its QEMU guest agent.
+     * @return the IPv4 addresses of its network interfaces, without loopback and link-local addresses. Empty
+     *         while the guest agent does not respond or the guest has no address yet.
+     */
+    public List<String> getQemuGuestAgentAddresses(String node, Integer vmid) throws LoginException {
+        String path = "nodes/" + node + "/qemu/" + vmid.toString() + "/agent/network-get-interfaces";
+        return await(JSONResourceAsync(new ApiRequest("GET", path, null), RequestPriority.NORMAL)
+                .thenApply(response -> response.isSuccess()
+                        ? parseGuestAgentAddresses(response.getBody().getObject())
+                        : new ArrayList<String>()));
+    }
+
+    static List<String> parseGuestAgentAddresses(JSONObject response) {
+        List<String> res = new ArrayList<String>();
+        JSONObject data = response.optJSONObject("data");
+        JSONArray interfaces = data == null ? null : data.optJSONArray("result");
+        if (interfaces == null) {
+            return res;
+        }
+        for (int i = 0; i < interfaces.length(); i++) {
+            JSONArray addresses = interfaces.getJSONObject(i).optJSONArray("ip-addresses");
+            for (int j = 0; addresses != null && j < addresses.length(); j++) {
+                JSONObject address = addresses.getJSONObject(j);
+                String ip = address.optString("ip-address");
+                if ("ipv4".equals(address.optString("ip-address-type"))
+                        && !ip.startsWith("127.")
+                        && !ip.startsWith("169.254.")) {
+                    res.add(ip);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Writes a file inside the virtual machine through its QEMU guest agent.
+     */
+    public void writeQemuGuestAgentFile(String node, Integer vmid, String file, String content)
+            throws LoginException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("file", file);
+        parameters.put("content", content);
+        String path = "nodes/" + node + "/qemu/" + vmid.toString() + "/agent/file-write";
+        HttpResponse<JsonNode> response = await(
+                JSONResourceAsync(new ApiRequest("POST", path, formBody(parameters)), RequestPriority.NORMAL));
+        if (!response.isSuccess()) {
+            throw new IllegalStateException("Proxmox API request " + endpointTemplate(path) + " failed: "
+                    + response.getStatus() + " " + response.getStatusText());
+        }
+    }
+
+    /**
+     * Lists the guests and nodes of the whole cluster. Storage and other resource types are skipped.
+     */
+    public List<ClusterResource> getClusterResources() throws LoginException {
+        return await(getClusterResourcesAsync());
+    }
+
+    public CompletableFuture<List<ClusterResource>> getClusterResourcesAsync() {
+        return getClusterResourcesAsync(RequestPriority.BACKGROUND);
+    }
+
+    public CompletableFuture<List<ClusterResource>> getClusterResourcesAsync(RequestPriority priority) {
+        return getStreamedResourceAsync(
+                "cluster/resources", priority, body -> parseClusterResources(body, System.currentTimeMillis()));
+    }
+
+    static List<ClusterResource> parseClusterResources(Reader body, long observedAt) throws IOException {
+        List<ClusterResource> res = new ArrayList<ClusterResource>();
+        JsonListingReader.read(body, CLUSTER_RESOURCE_FIELDS, values -> {
+            String type = values[0];
+            if ("qemu".equals(type) || "lxc".equals(type) || "node".equals(type)) {
+                res.add(new ClusterResource(
+                        type,
+                        values[1] == null ? "" : values[1],
+                        values[2] == null ? null : Integer.valueOf(values[2]),
+                        values[3],
+                        values[4] == null ? "" : values[4],
+                        "1".equals(values[5]),
+                        observedAt));
+            }
+        });
+        return res;
+    }
+
+    public NodeLoad getNodeLoad(String node) throws LoginException {
+        return await(getNodeLoadAsync(node));
+    }
+
+    public CompletableFuture<NodeLoad> getNodeLoadAsync(String node) {
+        return getJSONResourceAsync("nodes/" + node + "/status", RequestPriority.NORMAL)
+                .thenApply(response -> NodeLoad.fromStatus(node, response.getObject().getJSONObject("data")));
+    }
+
+    /**
+     * Migrates a stopped guest to another node. Without shared storage, the disks are copied.
+     * @return the id of the migration task, which runs on the source node.
+     */
+    public String migrateGuest(String node, GuestType type, Integer vmid, String targetNode) throws LoginException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("target", targetNode);
+        return postJSONResource(guestPath(node, type, vmid) + "/migrate", formBody(parameters), RequestPriority.NORMAL)
                 .getObject()
                 .getString("data");
     }
 
-    public String stopQemuMachine(String node, Integer vmid) throws LoginException {
-        return postJSONResource("nodes/" + node + "/qemu/" + vmid.toString() + "/status/stop", "")
+    public Integer getNextVmId() throws LoginException {
+        return Integer.valueOf(
+                getJSONResource("cluster/nextid", RequestPriority.NORMAL).getObject().get("data").toString());
+    }
+
+    /**
+     * Clones a virtual machine. A linked clone is only possible when the source is a template.
+     * @return the id of the clone task.
+     */
+    public String cloneQemuMachine(String node, Integer vmid, Integer newVmid, String name, Boolean fullClone)
+            throws LoginException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("newid", newVmid.toString());
+        parameters.put("name", name);
+        parameters.put("full", fullClone ? "1" : "0");
+        return postJSONResource(
+                        "nodes/" + node + "/qemu/" + vmid.toString() + "/clone",
+                        formBody(parameters),
+                        RequestPriority.NORMAL)
                 .getObject()
                 .getString("data");
     }
 
-    public String shutdownQemuMachine(String node, Integer vmid) throws LoginException {
-        return postJSONResource("nodes/" + node + "/qemu/" + vmid.toString() + "/status/shutdown", "")
+    /**
+     * Destroys a virtual machine and all of its disks. The machine has to be stopped.
+     * @return the id of the destroy task.
+     */
+    public String destroyQemuMachine(String node, Integer vmid) throws LoginException {
+        return deleteJSONResource("nodes/" + node + "/qemu/" + vmid.toString(), RequestPriority.NORMAL)
                 .getObject()
                 .getString("data");
     }
 
+    public JSONObject getQemuMachineConfig(String node, Integer vmid) throws LoginException {
+        return await(getGuestConfigAsync(node, GuestType.QEMU, vmid));
+    }
+
+    public CompletableFuture<JSONObject> getGuestConfigAsync(String node, GuestType type, Integer vmid) {
+        return getJSONResourceAsync(guestPath(node, type, vmid) + "/config", RequestPriority.NORMAL)
+                .thenApply(response -> response.getObject().getJSONObject("data"));
+    }
+
+    public Set<String> getGuestStorages(String node, GuestType type, Integer vmid) throws LoginException {
+        return await(getGuestStoragesAsync(node, type, vmid));
+    }
+
+    /**
+     * @return the storages holding the disks of a guest, read from its configuration.
+     */
+    public CompletableFuture<Set<String>> getGuestStoragesAsync(String node, GuestType type, Integer vmid) {
+        return getGuestConfigAsync(node, type, vmid).thenApply(Connector::parseStorages);
+    }
+
+    public Set<String> getSharedStorages() throws LoginException {
+        return await(getSharedStoragesAsync());
+    }
+
+    /**
+     * @return the storages every node of the cluster accesses alike, like Ceph or NFS, from the storage
+     *         configuration of the cluster.
+     */
+    public CompletableFuture<Set<String>> getSharedStoragesAsync() {
+        return getStreamedResourceAsync("storage", RequestPriority.BACKGROUND, Connector::parseSharedStorages);
+    }
+
+    static Set<String> parseSharedStorages(Reader body) throws IOException {
+        Set<String> res = new TreeSet<String>();
+        JsonListingReader.read(body, STORAGE_FIELDS, values -> {
+            if (values[0] != null && "1".equals(values[1])) {
+                res.add(values[0]);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Disks are configured as {@code <storage>:<volume>,<options>}; CD-ROM drives and passed through devices
+     * are not on a storage.
+     */
+    static Set<String> parseStorages(JSONObject config) {
+        Set<String> storages = new TreeSet<String>();
+        for (String key : config.keySet()) {
+            if (!DISK_KEY.matcher(key).matches()) {
+                continue;
+            }
+            String value = config.optString(key);
+            int colon = value.indexOf(':');
+            if (colon <= 0 || value.contains("media=cdrom") || value.startsWith("/")) {
+                continue;
+            }
+            storages.add(value.substring(0, colon));
+        }
+        return storages;
+    }
+
+    public void updateQemuMachineConfig(String node, Integer vmid, Map<String, String> config)
+            throws LoginException {
+        putJSONResource(
+                "nodes/" + node + "/qemu/" + vmid.toString() + "/config", formBody(config), RequestPriority.NORMAL);
+    }
+
+    /**
+     * A request which is not yet bound to an endpoint, so every attempt can go to another one.
+     */
+    private static final class ApiRequest {
+        final String method;
+        final String path;
+        final String body;
+
+        /**
+         * @param body a form encoded body, or null for none.
+         */
+        ApiRequest(String method, String path, String body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        /**
+         * Only reads are sent again after a response was lost. A PUT or DELETE starts a task or changes a
+         * configuration which may already have been applied, e.g. a destroy whose response timed out.
+         */
+        boolean isIdempotent() {
+            return method.equals("GET") || method.equals("HEAD");
+        }
+
+        HttpRequest build(UnirestInstance unirest, String baseURL) {
+            String url = baseURL + path;
+            switch (method) {
+                case "GET":
+                    return unirest.get(url);
+                case "DELETE":
+                    return unirest.delete(url);
+                case "PUT":
+                    return body == null
+                            ? unirest.put(url)
+                            : unirest.put(url)
+                                    .header("Content-Type", "application/x-www-form-urlencoded")
+                                    .body(body);
+                default:
+                    return body == null
+                            ? unirest.post(url)
+                            : unirest.post(url)
+                                    .header("Content-Type", "application/x-www-form-urlencoded")
+                                    .body(body);
+            }
+        }
+    }
+
+    private static final class AuthTicket {
+        final String ticket;
+        final String csrfPreventionToken;
+        final long issuedAt;
+
+        AuthTicket(String ticket, String csrfPreventionToken, long issuedAt) {
+            this.ticket = ticket;
+            this.csrfPreventionToken = csrfPreventionToken;
+            this.issuedAt = issuedAt;
+        }
+    }
+
     protected void finalize() {
         unirest.shutDown();
     }
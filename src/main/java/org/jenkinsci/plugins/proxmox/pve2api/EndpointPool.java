@@ -0,0 +1,216 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The API endpoints of a cluster. Every node of a Proxmox cluster serves the whole API, so requests are spread
+ * over the nodes: of two random healthy endpoints, the one with less requests in flight, weighted by its
+ * latency, is used. An endpoint whose request failed with a connection error or a timeout, or which is much slower than
+ * the others, is taken out of rotation for a while, longer after every failure.
+ * If no endpoint is healthy, the one which is back soonest is used.
+ */
+public class EndpointPool {
+
+    private static final Logger LOGGER = Logger.getLogger(EndpointPool.class.getName());
+
+    static final long MIN_PAUSE_MS = TimeUnit.SECONDS.toMillis(5);
+    static final long MAX_PAUSE_MS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * An endpoint is slow if its latency exceeds this many times the latency of the fastest endpoint,
+     * and {@link #SLOW_MIN_LATENCY_MS}.
+     */
+    static final double SLOW_FACTOR = 4;
+
+    static final double SLOW_MIN_LATENCY_MS = 1000;
+
+    /**
+     * Weight of a new sample in the moving average of the latency.
+     */
+    static final double LATENCY_SMOOTHING = 0.2;
+
+    private volatile List<Endpoint> endpoints;
+
+    public EndpointPool(String baseURL) {
+        this.endpoints = Collections.singletonList(new Endpoint(baseURL));
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Replaces the endpoints. Endpoints which are kept keep their health.
+     */
+    public synchronized void setBaseURLs(Collection<String> baseURLs) {
+        if (baseURLs.isEmpty()) {
+            return;
+        }
+        Map<String, Endpoint> existing = new LinkedHashMap<String, Endpoint>();
+        for (Endpoint endpoint : endpoints) {
+            existing.put(endpoint.baseURL, endpoint);
+        }
+        List<Endpoint> res = new ArrayList<Endpoint>();
+        for (String baseURL : baseURLs) {
+            Endpoint endpoint = existing.get(baseURL);
+            res.add(endpoint != null ? endpoint : new Endpoint(baseURL));
+        }
+        endpoints = Collections.unmodifiableList(res);
+    }
+
+    /**
+     * @param avoid the endpoint a request just failed on, to retry on another one. May be null.
+     */
+    public Endpoint choose(Endpoint avoid) {
+        List<Endpoint> all = endpoints;
+        if (all.size() == 1) {
+            return all.get(0);
+        }
+        long now = System.currentTimeMillis();
+        List<Endpoint> healthy = new ArrayList<Endpoint>(all.size());
+        for (Endpoint endpoint : all) {
+            if (endpoint != avoid && endpoint.isHealthy(now)) {
+                healthy.add(endpoint);
+            }
+        }
+        if (healthy.isEmpty() && avoid != null && avoid.isHealthy(now)) {
+            healthy.add(avoid);
+        }
+        if (healthy.isEmpty()) {
+            Endpoint soonest = all.get(0);
+            for (Endpoint endpoint : all) {
+                if (endpoint.getPausedUntil() < soonest.getPausedUntil()) {
+                    soonest = endpoint;
+                }
+            }
+            return soonest;
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Endpoint a = healthy.get(first);
+        Endpoint b = healthy.get(second);
+        return a.getCost() <= b.getCost() ? a : b;
+    }
+
+    /**
+     * @param latencyNanos the time from sending the request until the response arrived, or until its headers
+     *                     arrived if the body is streamed.
+     */
+    public void onSuccess(Endpoint endpoint, long latencyNanos) {
+        endpoint.recordSuccess(latencyNanos / 1e6);
+        double fastest = Double.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for (Endpoint other : endpoints) {
+            if (other.isHealthy(now) && other.getLatencyMillis() > 0) {
+                fastest = Math.min(fastest, other.getLatencyMillis());
+            }
+        }
+        double latency = endpoint.getLatencyMillis();
+        if (endpoints.size() > 1 && latency > SLOW_MIN_LATENCY_MS && latency > SLOW_FACTOR * fastest) {
+            LOGGER.log(
+                    Level.INFO,
+                    "Proxmox API endpoint " + endpoint + " is slow (" + Math.round(latency) + " ms), pausing it");
+            endpoint.pause();
+        }
+    }
+
+    public void onFailure(Endpoint endpoint) {
+        if (endpoints.size() > 1) {
+            LOGGER.log(Level.INFO, "Proxmox API endpoint " + endpoint + " failed, pausing it");
+        }
+        endpoint.recordFailure();
+    }
+
+    public static final class Endpoint {
+        private final String baseURL;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private double latencyMillis;
+        private int consecutivePauses;
+        private long pausedUntil;
+
+        Endpoint(String baseURL) {
+            this.baseURL = baseURL;
+        }
+
+        /**
+         * @return the URL of the API, ending with {@code /api2/json/}.
+         */
+        public String getBaseURL() {
+            return baseURL;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        void requestStarted() {
+            inFlight.incrementAndGet();
+        }
+
+        void requestFinished() {
+            inFlight.decrementAndGet();
+        }
+
+        public synchronized double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public synchronized long getPausedUntil() {
+            return pausedUntil;
+        }
+
+        public synchronized boolean isHealthy(long now) {
+            return now >= pausedUntil;
+        }
+
+        /**
+         * Idle endpoints cost nothing, so requests which are not concurrent are spread evenly.
+         */
+        synchronized double getCost() {
+            return latencyMillis * inFlight.get();
+        }
+
+        synchronized void recordSuccess(double sampleMillis) {
+            latencyMillis = latencyMillis == 0
+                    ? sampleMillis
+                    : latencyMillis + LATENCY_SMOOTHING * (sampleMillis - latencyMillis);
+            if (System.currentTimeMillis() >= pausedUntil) {
+                consecutivePauses = 0;
+            }
+        }
+
+        synchronized void recordFailure() {
+            pause();
+        }
+
+        synchronized void pause() {
+            long pause = Math.min(MAX_PAUSE_MS, MIN_PAUSE_MS << Math.min(consecutivePauses, 10));
+            consecutivePauses++;
+            pausedUntil = System.currentTimeMillis() + pause;
+            // measure it again when it is back
+            latencyMillis = 0;
+        }
+
+        @Override
+        public String toString() {
+            return baseURL;
+        }
+    }
+}
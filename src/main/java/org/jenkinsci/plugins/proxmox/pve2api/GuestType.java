@@ -0,0 +1,28 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+/**
+ * The kinds of guests a Proxmox node runs. The API of both is the same apart from the path segment.
+ */
+public enum GuestType {
+    QEMU("qemu", "QEMU virtual machine"),
+    LXC("lxc", "LXC container");
+
+    private final String path;
+    private final String label;
+
+    private GuestType(String path, String label) {
+        this.path = path;
+        this.label = label;
+    }
+
+    /**
+     * @return the path segment under {@code nodes/{node}/}, which is also the type in the cluster resources.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
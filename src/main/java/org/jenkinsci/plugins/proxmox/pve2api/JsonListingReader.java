@@ -0,0 +1,290 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads the entries of the {@code data} array of an API response token by token, keeping only the wanted fields
+ * of each entry. Nothing else of the response is kept in memory, so a listing of thousands of guests costs
+ * little more than the strings which are read from it.
+ * <p>
+ * Fields are handed over as their text: strings unescaped, numbers and booleans as written, JSON {@code null}
+ * and nested objects and arrays as null. Entries which are not objects are skipped.
+ */
+public final class JsonListingReader {
+
+    /**
+     * Receives the fields of one entry, in the order they were requested. The array is reused for the next
+     * entry.
+     */
+    public interface EntryHandler {
+        void entry(String[] values);
+    }
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private final StringBuilder text = new StringBuilder();
+
+    private JsonListingReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @param fields the names of the fields to read from every entry.
+     */
+    public static void read(Reader in, String[] fields, EntryHandler handler) throws IOException {
+        new JsonListingReader(in).readResponse(fields, handler);
+    }
+
+    private void readResponse(String[] fields, EntryHandler handler) throws IOException {
+        expect('{');
+        if (skipWhitespaceAndPeek() == '}') {
+            return;
+        }
+        do {
+            boolean data = readKey().contentEquals("data");
+            if (data && skipWhitespaceAndPeek() == '[') {
+                readEntries(fields, handler);
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+    }
+
+    private void readEntries(String[] fields, EntryHandler handler) throws IOException {
+        expect('[');
+        if (skipWhitespaceAndPeek() == ']') {
+            position++;
+            return;
+        }
+        String[] values = new String[fields.length];
+        do {
+            if (skipWhitespaceAndPeek() != '{') {
+                skipValue();
+                continue;
+            }
+            expect('{');
+            Arrays.fill(values, null);
+            if (skipWhitespaceAndPeek() == '}') {
+                position++;
+            } else {
+                do {
+                    int field = indexOf(fields, readKey());
+                    if (field >= 0) {
+                        values[field] = readScalar();
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember('}'));
+            }
+            handler.entry(values);
+        } while (nextMember(']'));
+    }
+
+    private static int indexOf(String[] fields, CharSequence key) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].contentEquals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the name of a member and the colon after it.
+     * @return the name, valid until the next string is read.
+     */
+    private CharSequence readKey() throws IOException {
+        if (skipWhitespaceAndPeek() != '"') {
+            throw malformed("member name");
+        }
+        readString(true);
+        expect(':');
+        return text;
+    }
+
+    /**
+     * @return true if another member or element follows, false at the closing bracket.
+     */
+    private boolean nextMember(char close) throws IOException {
+        int c = skipWhitespaceAndPeek();
+        position++;
+        if (c == ',') {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw malformed("',' or '" + close + "'");
+    }
+
+    private String readScalar() throws IOException {
+        int c = skipWhitespaceAndPeek();
+        if (c == '"') {
+            readString(true);
+            return text.toString();
+        }
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        text.setLength(0);
+        while ((c = peek()) != -1 && !isDelimiter(c)) {
+            text.append((char) c);
+            position++;
+        }
+        if (text.length() == 0) {
+            throw malformed("value");
+        }
+        return text.toString().equals("null") ? null : text.toString();
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipWhitespaceAndPeek();
+        if (c == '"') {
+            readString(false);
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == -1) {
+                    throw malformed("end of value");
+                }
+                if (c == '"') {
+                    readString(false);
+                    continue;
+                }
+                position++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            int length = 0;
+            while ((c = peek()) != -1 && !isDelimiter(c)) {
+                position++;
+                length++;
+            }
+            if (length == 0) {
+                throw malformed("value");
+            }
+        }
+    }
+
+    /**
+     * Reads a string starting at the opening quote.
+     * @param keep whether to unescape the string into {@link #text}.
+     */
+    private void readString(boolean keep) throws IOException {
+        position++;
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw malformed("end of string");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw malformed("unicode escape");
+                            }
+                            c = (c << 4) | digit;
+                        }
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        break;
+                    default:
+                        throw malformed("escape sequence");
+                }
+            }
+            if (keep) {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == ',' || c == '}' || c == ']' || Character.isWhitespace(c);
+    }
+
+    private void expect(char expected) throws IOException {
+        if (skipWhitespaceAndPeek() != expected) {
+            throw malformed("'" + expected + "'");
+        }
+        position++;
+    }
+
+    private int skipWhitespaceAndPeek() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+            position++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            position++;
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+
+    private IOException malformed(String expected) {
+        return new MalformedJsonException("Malformed JSON response: expected " + expected);
+    }
+
+    /**
+     * The response is not what was expected, unlike other {@link IOException}s which are failures of the
+     * connection it is read from.
+     */
+    public static class MalformedJsonException extends IOException {
+        public MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+}
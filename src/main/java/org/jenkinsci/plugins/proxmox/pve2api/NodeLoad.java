@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import kong.unirest.json.JSONObject;
+
+/**
+ * The utilization of a Proxmox node, as reported by {@code nodes/{node}/status}. All values are fractions
+ * between 0 and 1.
+ */
+public class NodeLoad {
+
+    private final String node;
+    private final double cpu;
+    private final double memory;
+    private final double ioWait;
+
+    public NodeLoad(String node, double cpu, double memory, double ioWait) {
+        this.node = node;
+        this.cpu = cpu;
+        this.memory = memory;
+        this.ioWait = ioWait;
+    }
+
+    static NodeLoad fromStatus(String node, JSONObject status) {
+        double memory = 0;
+        JSONObject memoryStatus = status.optJSONObject("memory");
+        if (memoryStatus != null && memoryStatus.optDouble("total", 0) > 0) {
+            memory = memoryStatus.optDouble("used", 0) / memoryStatus.getDouble("total");
+        }
+        return new NodeLoad(node, status.optDouble("cpu", 0), memory, status.optDouble("wait", 0));
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public double getCpu() {
+        return cpu;
+    }
+
+    public double getMemory() {
+        return memory;
+    }
+
+    public double getIoWait() {
+        return ioWait;
+    }
+
+    /**
+     * @return the most saturated of CPU, memory and IO wait.
+     */
+    public double getLoad() {
+        return Math.max(cpu, Math.max(memory, ioWait));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s (cpu %.0f%%, memory %.0f%%, io wait %.0f%%)", node, cpu * 100, memory * 100, ioWait * 100);
+    }
+}
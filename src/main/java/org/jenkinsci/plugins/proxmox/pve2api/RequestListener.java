@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+/**
+ * Receives the outcome of every request a {@link Connector} sends, e.g. to record metrics.
+ * Endpoints are reported as templates like {@code nodes/{node}/qemu/{vmid}/status/current}, so they can be
+ * aggregated across nodes and guests. Implementations are called on the HTTP client's threads and must not block.
+ */
+public interface RequestListener {
+
+    /**
+     * @param status        the HTTP status, or 0 if no response was received.
+     * @param queuedNanos   the time the request waited in the {@link RequestThrottle}.
+     * @param durationNanos the time from sending the request until the response, including a retry.
+     */
+    void onResponse(String method, String endpoint, int status, long queuedNanos, long durationNanos);
+
+    /**
+     * A request is sent again, after its authentication ticket was rejected or after a transient failure.
+     */
+    void onRetry(String method, String endpoint);
+
+    /**
+     * The {@link CircuitBreaker} of the connector opened, let a probe request through or closed again.
+     */
+    void onCircuitBreakerStateChange(CircuitBreaker.State state);
+
+    /**
+     * A watched task finished.
+     * @param type the task type from its id, e.g. {@code qmrollback}.
+     */
+    void onTaskFinished(String node, String type, String exitStatus, long durationNanos);
+
+    RequestListener NONE = new RequestListener() {
+        @Override
+        public void onResponse(String method, String endpoint, int status, long queuedNanos, long durationNanos) {}
+
+        @Override
+        public void onRetry(String method, String endpoint) {}
+
+        @Override
+        public void onCircuitBreakerStateChange(CircuitBreaker.State state) {}
+
+        @Override
+        public void onTaskFinished(String node, String type, String exitStatus, long durationNanos) {}
+    };
+}
@@ -0,0 +1,13 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+/**
+ * Priority classes of API requests. When requests are throttled, higher priorities are sent first.
+ */
+public enum RequestPriority {
+    /** Requests on the critical path of a build: task status polls, rollbacks, starts and stops. */
+    CRITICAL,
+    /** Single guest lookups and changes. */
+    NORMAL,
+    /** Listings for the inventory and the configuration pages. */
+    BACKGROUND
+}
@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.Timer;
+
+/**
+ * Limits the number of concurrent requests and the request rate (token bucket) of a {@link Connector}.
+ * Waiting requests are served by priority, and in order of arrival within a priority.
+ * A limit of 0 disables it.
+ */
+public class RequestThrottle {
+
+    private int maxConcurrentRequests;
+    private double requestsPerSecond;
+
+    private int inFlight;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private ScheduledFuture<?> scheduledDispatch;
+    private final Map<RequestPriority, ArrayDeque<Waiter>> queues =
+            new EnumMap<RequestPriority, ArrayDeque<Waiter>>(RequestPriority.class);
+
+    private long completedWaits;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    public RequestThrottle() {
+        for (RequestPriority priority : RequestPriority.values()) {
+            queues.put(priority, new ArrayDeque<Waiter>());
+        }
+    }
+
+    public synchronized void configure(int maxConcurrentRequests, double requestsPerSecond) {
+        this.maxConcurrentRequests = Math.max(maxConcurrentRequests, 0);
+        this.requestsPerSecond = Math.max(requestsPerSecond, 0);
+        this.tokens = getBurstSize();
+        dispatchLater(0);
+    }
+
+    public synchronized int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public synchronized double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @return a future which is completed once the request may be sent. {@link #release()} has to be called
+     *         when the request is done.
+     */
+    public CompletableFuture<Void> acquire(RequestPriority priority) {
+        Waiter waiter = new Waiter();
+        synchronized (this) {
+            queues.get(priority).add(waiter);
+        }
+        dispatch();
+        return waiter.future;
+    }
+
+    public void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    private double getBurstSize() {
+        return Math.max(1, requestsPerSecond);
+    }
+
+    /**
+     * Admits as many waiting requests as the limits allow. The futures are completed outside of the lock,
+     * as completing them sends the requests.
+     */
+    private void dispatch() {
+        List<Waiter> admitted = new ArrayList<Waiter>();
+        synchronized (this) {
+            while (true) {
+                Waiter waiter = peek();
+                if (waiter == null || (maxConcurrentRequests > 0 && inFlight >= maxConcurrentRequests)) {
+                    break;
+                }
+                if (requestsPerSecond > 0) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(
+                            getBurstSize(), tokens + (now - lastRefillNanos) * requestsPerSecond / 1_000_000_000L);
+                    lastRefillNanos = now;
+                    if (tokens < 1) {
+                        dispatchLater((long) Math.ceil((1 - tokens) * 1000 / requestsPerSecond));
+                        break;
+                    }
+                    tokens--;
+                }
+                poll();
+                inFlight++;
+                long waited = System.nanoTime() - waiter.enqueuedNanos;
+                completedWaits++;
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+                admitted.add(waiter);
+            }
+        }
+        for (Waiter waiter : admitted) {
+            waiter.future.complete(null);
+        }
+    }
+
+    private synchronized void dispatchLater(long delayMs) {
+        if (scheduledDispatch == null || scheduledDispatch.isDone()) {
+            scheduledDispatch = Timer.get().schedule(this::dispatch, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Waiter peek() {
+        for (ArrayDeque<Waiter> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return queue.peek();
+            }
+        }
+        return null;
+    }
+
+    private void poll() {
+        for (ArrayDeque<Waiter> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                queue.poll();
+                return;
+            }
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (ArrayDeque<Waiter> queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public synchronized int getQueueDepth(RequestPriority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * @return the average time requests waited for admission, in milliseconds.
+     */
+    public synchronized double getAverageWaitMillis() {
+        return completedWaits == 0 ? 0 : totalWaitNanos / 1_000_000.0 / completedWaits;
+    }
+
+    public synchronized double getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000.0;
+    }
+
+    private static final class Waiter {
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    }
+}
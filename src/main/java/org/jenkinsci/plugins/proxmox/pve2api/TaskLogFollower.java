@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+
+/**
+ * Prints the log of a Proxmox task. Only the lines after the last one printed are requested, using the
+ * {@code start} offset of {@code nodes/{node}/tasks/{upid}/log}, so a long log is downloaded once.
+ * <p>
+ * Live following is meant for long tasks, like rollbacks and migrations: the new lines are fetched whenever
+ * the {@link TaskWatcher} polls the task and sees it running, so the fetches back off with the poll interval.
+ * Otherwise the log is fetched once the task finished.
+ */
+public class TaskLogFollower {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskLogFollower.class.getName());
+
+    static final int PAGE_SIZE = 500;
+
+    /**
+     * The only line of an empty log.
+     */
+    static final String NO_CONTENT = "no content";
+
+    private final Connector connector;
+    private final String node;
+    private final String upid;
+    private final PrintStream out;
+
+    private volatile int printedLines;
+    // the number of the last line printed, where the next fetch starts
+    private volatile int nextStart;
+    // fetches run one after the other, so lines are never printed twice or out of order
+    private CompletableFuture<Void> lastFetch = CompletableFuture.completedFuture(null);
+
+    public TaskLogFollower(Connector connector, String node, String upid, PrintStream out) {
+        this.connector = connector;
+        this.node = node;
+        this.upid = upid;
+        this.out = out;
+    }
+
+    public int getPrintedLines() {
+        return printedLines;
+    }
+
+    /**
+     * Follows the log while the task runs.
+     * @return a future which completes like the task, after its whole log is printed.
+     *         Cancelling it cancels the task future.
+     */
+    public CompletableFuture<JSONObject> follow(TaskWatcher watcher) {
+        return printWhenDone(watcher.watch(node, upid, () -> {
+            if (isIdle()) {
+                fetchNewLines(true);
+            }
+        }));
+    }
+
+    /**
+     * Prints the log once the task completed.
+     * @param task the future of the task from the {@link TaskWatcher}.
+     * @return a future which completes like the task, after its whole log is printed.
+     *         Cancelling it cancels the task future.
+     */
+    public CompletableFuture<JSONObject> printWhenDone(CompletableFuture<JSONObject> task) {
+        CompletableFuture<JSONObject> res = new CompletableFuture<JSONObject>();
+        task.whenComplete((status, error) -> fetchNewLines(false).whenComplete((done, logError) -> {
+            if (error != null) {
+                res.completeExceptionally(error);
+            } else {
+                res.complete(status);
+            }
+        }));
+        res.whenComplete((status, error) -> {
+            if (res.isCancelled()) {
+                task.cancel(false);
+            }
+        });
+        return res;
+    }
+
+    private synchronized boolean isIdle() {
+        return lastFetch.isDone();
+    }
+
+    /**
+     * Prints the lines added to the log since the last fetch. Failed requests are only logged, the log
+     * is best effort and must not fail the task.
+     * @param running whether the task is still running, its log may then be empty for now.
+     */
+    public synchronized CompletableFuture<Void> fetchNewLines(boolean running) {
+        lastFetch = lastFetch.thenCompose(previous -> fetchPage(running)).exceptionally(e -> {
+            LOGGER.log(Level.FINE, "Fetching the log of task " + upid + " failed", e);
+            return null;
+        });
+        return lastFetch;
+    }
+
+    private CompletableFuture<Void> fetchPage(boolean running) {
+        return connector.getTaskLogAsync(node, upid, nextStart, PAGE_SIZE).thenCompose(lines -> {
+            // the placeholder is a real line only if the finished task never wrote anything
+            if (isEmptyLog(lines) && (running || nextStart > 0)) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            for (int i = 0; i < lines.length(); i++) {
+                JSONObject line = lines.getJSONObject(i);
+                out.println(line.optString("t"));
+                // the lines are numbered from 1, the offset counts the lines to skip
+                nextStart = Math.max(nextStart, line.optInt("n", nextStart + 1));
+            }
+            printedLines += lines.length();
+            if (lines.length() >= PAGE_SIZE) {
+                // more lines than fit into one page were added since the last fetch
+                return fetchPage(running);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        });
+    }
+
+    /**
+     * Proxmox answers a page without lines with a single placeholder line.
+     */
+    static boolean isEmptyLog(JSONArray lines) {
+        return lines.length() == 1 && NO_CONTENT.equals(lines.getJSONObject(0).optString("t"));
+    }
+}
@@ -0,0 +1,298 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+
+/**
+ * Tracks all outstanding tasks of a {@link Connector} and polls their state with one task listing per node,
+ * instead of one status request per task.
+ * Young tasks are polled quickly, the interval grows as the tasks get older.
+ */
+public class TaskWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(TaskWatcher.class.getName());
+
+    static final long MIN_POLL_INTERVAL_MS = 250;
+    static final long MAX_POLL_INTERVAL_MS = 5000;
+
+    /**
+     * Unfinished tasks are looked up one by one every this many polls, in case the listing missed them.
+     */
+    static final int POLLS_BEFORE_STATUS_REQUEST = 30;
+
+    /**
+     * Time without a successful poll of its node after which a task is failed. Polls fail right away while the
+     * circuit breaker is open, so this is a time rather than a number of polls: a rollback or migration still
+     * running on the node must not be reported failed while the API recovers.
+     */
+    static final long MAX_UNPOLLED_MS =
+            SystemProperties.getLong(TaskWatcher.class.getName() + ".maxUnpolledSeconds", 300L) * 1000;
+
+    private final Connector connector;
+
+    // node -> upid -> task
+    private final Map<String, Map<String, WatchedTask>> tasks = new HashMap<String, Map<String, WatchedTask>>();
+    private ScheduledFuture<?> scheduledPoll;
+    private long scheduledPollTime;
+    private boolean polling;
+
+    public TaskWatcher(Connector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * @return a future which is completed with the final status object of the task.
+     */
+    public CompletableFuture<JSONObject> watch(String node, String upid) {
+        return watch(node, upid, null);
+    }
+
+    /**
+     * @param onProgress called on every poll which sees the task still running, so work for a running task,
+     *                   like following its log, follows the poll interval instead of its own timer. May be null.
+     * @return a future which is completed with the final status object of the task.
+     */
+    public CompletableFuture<JSONObject> watch(String node, String upid, Runnable onProgress) {
+        WatchedTask task = new WatchedTask(upid);
+        synchronized (this) {
+            WatchedTask existing =
+                    tasks.computeIfAbsent(node, n -> new HashMap<String, WatchedTask>()).get(upid);
+            if (existing != null) {
+                if (onProgress != null) {
+                    existing.progressListeners.add(onProgress);
+                }
+                return existing.future;
+            }
+            if (onProgress != null) {
+                task.progressListeners.add(onProgress);
+            }
+            tasks.get(node).put(upid, task);
+            schedulePoll(MIN_POLL_INTERVAL_MS);
+        }
+        task.future.thenAccept(status -> connector
+                .getRequestListener()
+                .onTaskFinished(
+                        node,
+                        parseType(upid),
+                        status.optString("exitstatus"),
+                        TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - task.watchedSince)));
+        return task.future;
+    }
+
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Map<String, WatchedTask> nodeTasks : tasks.values()) {
+            count += nodeTasks.size();
+        }
+        return count;
+    }
+
+    private synchronized void schedulePoll(long delayMs) {
+        long pollTime = System.currentTimeMillis() + delayMs;
+        if (polling) {
+            // the running poll reschedules itself when it is done
+            return;
+        }
+        if (scheduledPoll != null && !scheduledPoll.isDone()) {
+            if (scheduledPollTime <= pollTime) {
+                return;
+            }
+            scheduledPoll.cancel(false);
+        }
+        scheduledPollTime = pollTime;
+        scheduledPoll = Timer.get().schedule(this::poll, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the shared timer, so the requests are only sent from here. The next poll is scheduled once all
+     * responses are in.
+     */
+    private void poll() {
+        Map<String, List<WatchedTask>> snapshot = new HashMap<String, List<WatchedTask>>();
+        synchronized (this) {
+            polling = true;
+            for (Map.Entry<String, Map<String, WatchedTask>> entry : tasks.entrySet()) {
+                Iterator<WatchedTask> it = entry.getValue().values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().future.isDone()) {
+                        // cancelled by the caller
+                        it.remove();
+                    }
+                }
+                if (!entry.getValue().isEmpty()) {
+                    snapshot.put(entry.getKey(), new ArrayList<WatchedTask>(entry.getValue().values()));
+                }
+            }
+        }
+
+        List<CompletableFuture<Void>> nodePolls = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (Map.Entry<String, List<WatchedTask>> entry : snapshot.entrySet()) {
+                nodePolls.add(pollNode(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            CompletableFuture.allOf(nodePolls.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((result, e) -> pollDone());
+        }
+    }
+
+    private synchronized void pollDone() {
+        polling = false;
+        long youngestAge = Long.MAX_VALUE;
+        for (Map<String, WatchedTask> nodeTasks : tasks.values()) {
+            Iterator<WatchedTask> it = nodeTasks.values().iterator();
+            while (it.hasNext()) {
+                WatchedTask task = it.next();
+                if (task.future.isDone()) {
+                    it.remove();
+                } else {
+                    youngestAge = Math.min(youngestAge, System.currentTimeMillis() - task.watchedSince);
+                }
+            }
+        }
+        tasks.values().removeIf(Map::isEmpty);
+        if (!tasks.isEmpty()) {
+            schedulePoll(Math.max(MIN_POLL_INTERVAL_MS, Math.min(MAX_POLL_INTERVAL_MS, youngestAge / 4)));
+        }
+    }
+
+    private CompletableFuture<Void> pollNode(String node, List<WatchedTask> nodeTasks) {
+        long since = Long.MAX_VALUE;
+        for (WatchedTask task : nodeTasks) {
+            since = Math.min(since, task.startTime);
+        }
+
+        int limit = Math.max(50, nodeTasks.size() * 4);
+        return connector
+                .getTasksAsync(node, since, limit)
+                .handle((nodeTaskList, e) -> {
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        LOGGER.log(Level.FINE, "Listing tasks of node " + node + " failed", cause);
+                        for (WatchedTask task : nodeTasks) {
+                            if (System.currentTimeMillis() - task.lastPolled >= MAX_UNPOLLED_MS) {
+                                task.future.completeExceptionally(cause);
+                            }
+                        }
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return checkListing(node, nodeTasks, nodeTaskList, limit);
+                })
+                .thenCompose(statusRequests -> statusRequests);
+    }
+
+    /**
+     * Completes the tasks which the listing shows finished.
+     * @return a future which completes once the status of the tasks which have to be looked up one by one is in.
+     */
+    private CompletableFuture<Void> checkListing(
+            String node, List<WatchedTask> nodeTasks, JSONArray nodeTaskList, int limit) {
+        Map<String, WatchedTask> byUpid = new HashMap<String, WatchedTask>();
+        for (WatchedTask task : nodeTasks) {
+            task.lastPolled = System.currentTimeMillis();
+            byUpid.put(task.upid, task);
+        }
+        for (int i = 0; i < nodeTaskList.length(); i++) {
+            JSONObject listed = nodeTaskList.getJSONObject(i);
+            WatchedTask task = byUpid.get(listed.optString("upid"));
+            if (task != null && listed.has("endtime")) {
+                task.future.complete(toTaskStatus(listed));
+                byUpid.remove(task.upid);
+            }
+        }
+
+        // Tasks which are still running, or which did not fit into a truncated listing
+        boolean truncated = nodeTaskList.length() >= limit;
+        List<CompletableFuture<Void>> statusRequests = new ArrayList<CompletableFuture<Void>>();
+        for (WatchedTask task : byUpid.values()) {
+            task.progress();
+            if (truncated || ++task.pollsSinceStatusRequest >= POLLS_BEFORE_STATUS_REQUEST) {
+                task.pollsSinceStatusRequest = 0;
+                statusRequests.add(connector
+                        .getTaskStatusAsync(node, task.upid)
+                        .handle((status, e) -> {
+                            if (e != null) {
+                                LOGGER.log(Level.FINE, "Task status request for " + task.upid + " failed", e);
+                            } else if (!status.getString("status").equals("running")) {
+                                task.future.complete(status);
+                            }
+                            return null;
+                        }));
+            }
+        }
+        return CompletableFuture.allOf(statusRequests.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Converts a finished entry of the task listing into the format of the task status request.
+     */
+    static JSONObject toTaskStatus(JSONObject finishedTask) {
+        JSONObject status = new JSONObject(finishedTask.toString());
+        status.put("exitstatus", finishedTask.optString("status"));
+        status.put("status", "stopped");
+        return status;
+    }
+
+    /**
+     * @return the start time in seconds since the epoch encoded in a task id
+     *         ({@code UPID:node:pid:pstart:starttime:type:id:user:}).
+     */
+    static long parseStartTime(String upid) {
+        String[] parts = upid.split(":");
+        if (parts.length > 4) {
+            try {
+                return Long.parseLong(parts[4], 16);
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return System.currentTimeMillis() / 1000 - 60;
+    }
+
+    /**
+     * @return the task type encoded in a task id, e.g. {@code qmstart}.
+     */
+    static String parseType(String upid) {
+        String[] parts = upid.split(":");
+        return parts.length > 5 ? parts[5] : "unknown";
+    }
+
+    private static final class WatchedTask {
+        final String upid;
+        final long startTime;
+        final long watchedSince = System.currentTimeMillis();
+        final CompletableFuture<JSONObject> future = new CompletableFuture<JSONObject>();
+        final List<Runnable> progressListeners = new CopyOnWriteArrayList<Runnable>();
+        int pollsSinceStatusRequest;
+        long lastPolled = watchedSince;
+
+        WatchedTask(String upid) {
+            this.upid = upid;
+            this.startTime = parseStartTime(upid);
+        }
+
+        void progress() {
+            for (Runnable listener : progressListeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Progress listener of task " + upid + " failed", e);
+                }
+            }
+        }
+    }
+}
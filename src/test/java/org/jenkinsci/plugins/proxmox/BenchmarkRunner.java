@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.proxmox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the plugin with the GC profiler, which reports the allocation rate next to the
+ * throughput. Only runs with {@code mvn test -Dbenchmark}, which also activates the {@code jmh-benchmark}
+ * profile of the plugin parent POM. The results are written to {@code target/jmh-report.json}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = ".*")
+class BenchmarkRunner {
+
+    @Test
+    void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include("org\\.jenkinsci\\.plugins\\.proxmox\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        new Runner(options).run();
+    }
+}
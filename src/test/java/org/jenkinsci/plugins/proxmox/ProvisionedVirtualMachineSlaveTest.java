@@ -0,0 +1,174 @@
+package org.jenkinsci.plugins.proxmox;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.util.Secret;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.proxmox.pve2api.ProxmoxSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ProvisionedVirtualMachineSlaveTest {
+
+    private static final int TEMPLATE_ID = 9000;
+    private static final long TIMEOUT_MS = 60000;
+
+    private ProxmoxSimulator simulator;
+    private Datacenter datacenter;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        simulator = new ProxmoxSimulator().addQemuMachine("pve1", TEMPLATE_ID, "template");
+        datacenter = new Datacenter(
+                simulator.getHostname(), "root", "pam", Secret.fromString(ProxmoxSimulator.PASSWORD), false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        simulator.close();
+    }
+
+    @Test
+    void should_connect_every_clone_to_its_own_address(JenkinsRule r) throws Exception {
+        HostLauncher templateLauncher = new HostLauncher("template.example.com", r.createComputerLauncher(null));
+        VirtualMachineTemplate template = addTemplate(r, templateLauncher);
+
+        datacenter.provisionWarmPool(template, 2);
+        List<ProvisionedVirtualMachineSlave> agents = waitForAgents(r, 2);
+        for (ProvisionedVirtualMachineSlave agent : agents) {
+            r.waitOnline(agent);
+        }
+
+        ComputerLauncher first = agents.get(0).getDelegateLauncher();
+        ComputerLauncher second = agents.get(1).getDelegateLauncher();
+        assertThat(first, not(sameInstance(second)));
+        assertThat(first, not(sameInstance(templateLauncher)));
+        for (ProvisionedVirtualMachineSlave agent : agents) {
+            HostLauncher launcher = (HostLauncher) agent.getDelegateLauncher();
+            assertThat(launcher.getHost(), is(ProxmoxSimulator.getGuestAddress(agent.getVirtualMachineId())));
+            assertThat(launcher.getConnectedHost(), is(launcher.getHost()));
+            assertThat(agent.toComputer().isOnline(), is(true));
+        }
+        assertThat(templateLauncher.getHost(), is("template.example.com"));
+    }
+
+    @Test
+    void should_destroy_the_clone_after_it_is_disconnected(JenkinsRule r) throws Exception {
+        VirtualMachineTemplate template =
+                addTemplate(r, new HostLauncher("template.example.com", r.createComputerLauncher(null)));
+        datacenter.provisionWarmPool(template, 1);
+        ProvisionedVirtualMachineSlave agent = waitForAgents(r, 1).get(0);
+        r.waitOnline(agent);
+
+        agent.terminate(TaskListener.NULL);
+        assertThat(r.jenkins.getNode(agent.getNodeName()), nullValue());
+        assertThat(simulator.hasGuest("pve1", agent.getVirtualMachineId()), is(false));
+    }
+
+    @Test
+    void should_write_the_connection_details_of_an_inbound_clone(JenkinsRule r) throws Exception {
+        VirtualMachineTemplate template = addTemplate(r, new JNLPLauncher());
+
+        datacenter.provisionWarmPool(template, 2);
+        for (ProvisionedVirtualMachineSlave agent : waitForAgents(r, 2)) {
+            int vmid = agent.getVirtualMachineId();
+            String file = waitForGuestFile(vmid, ProvisionedVirtualMachineSlave.CONNECTION_FILE);
+            assertThat(file, containsString("JENKINS_AGENT_NAME=" + agent.getNodeName() + "\n"));
+            String secret = ((SlaveComputer) agent.toComputer()).getJnlpMac();
+            assertThat(file, containsString("JENKINS_SECRET=" + secret + "\n"));
+        }
+    }
+
+    private VirtualMachineTemplate addTemplate(JenkinsRule r, ComputerLauncher launcher) {
+        VirtualMachineTemplate template = new VirtualMachineTemplate(
+                "clone",
+                "pve1",
+                TEMPLATE_ID,
+                "agent",
+                new File(r.jenkins.getRootDir(), "agent").getPath(),
+                1,
+                0,
+                10,
+                0,
+                launcher);
+        datacenter.setTemplates(Collections.singletonList(template));
+        r.jenkins.clouds.add(datacenter);
+        return template;
+    }
+
+    private static List<ProvisionedVirtualMachineSlave> waitForAgents(JenkinsRule r, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            List<ProvisionedVirtualMachineSlave> agents = new ArrayList<ProvisionedVirtualMachineSlave>();
+            for (Node node : r.jenkins.getNodes()) {
+                if (node instanceof ProvisionedVirtualMachineSlave) {
+                    agents.add((ProvisionedVirtualMachineSlave) node);
+                }
+            }
+            if (agents.size() >= count || System.currentTimeMillis() > deadline) {
+                assertThat(agents.size(), is(count));
+                return agents;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private String waitForGuestFile(int vmid, String file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        String content = simulator.getGuestFile("pve1", vmid, file);
+        while (content == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            content = simulator.getGuestFile("pve1", vmid, file);
+        }
+        assertThat(content, notNullValue());
+        return content;
+    }
+
+    /**
+     * Connects like a launcher which connects to its agent, through a local command instead of SSH.
+     */
+    public static class HostLauncher extends ComputerLauncher {
+        private final String host;
+        private final ComputerLauncher launcher;
+        private transient String connectedHost;
+
+        HostLauncher(String host, ComputerLauncher launcher) {
+            this.host = host;
+            this.launcher = launcher;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        String getConnectedHost() {
+            return connectedHost;
+        }
+
+        @Override
+        public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+            connectedHost = host;
+            launcher.launch(computer, listener);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.util.Random;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+
+/**
+ * Response bodies of realistic size and shape, as a Proxmox VE cluster returns them.
+ * They are generated from a fixed seed, so every run sees the same bodies.
+ */
+final class CannedResponses {
+
+    static final int NODES = 16;
+
+    private CannedResponses() {}
+
+    private static String node(int i) {
+        return "pve" + (i % NODES + 1);
+    }
+
+    /**
+     * @return the {@code cluster/resources} listing with the nodes, their storages and the guests.
+     */
+    static String clusterResources(int guests) {
+        Random random = new Random(42);
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < NODES; i++) {
+            JSONObject node = new JSONObject();
+            node.put("id", "node/" + node(i));
+            node.put("type", "node");
+            node.put("node", node(i));
+            node.put("status", "online");
+            node.put("cpu", random.nextDouble());
+            node.put("maxcpu", 64);
+            node.put("mem", random.nextLong() & 0xFFFFFFFFFL);
+            node.put("maxmem", 549755813888L);
+            node.put("uptime", random.nextInt(10000000));
+            node.put("level", "");
+            data.put(node);
+            JSONObject storage = new JSONObject();
+            storage.put("id", "storage/" + node(i) + "/local-lvm");
+            storage.put("type", "storage");
+            storage.put("node", node(i));
+            storage.put("storage", "local-lvm");
+            storage.put("status", "available");
+            storage.put("disk", random.nextLong() & 0xFFFFFFFFFFL);
+            storage.put("maxdisk", 4398046511104L);
+            storage.put("plugintype", "lvmthin");
+            storage.put("content", "rootdir,images");
+            storage.put("shared", 0);
+            data.put(storage);
+        }
+        for (int i = 0; i < guests; i++) {
+            boolean lxc = i % 5 == 0;
+            boolean running = random.nextInt(3) > 0;
+            int vmid = 100 + i;
+            JSONObject guest = new JSONObject();
+            guest.put("id", (lxc ? "lxc/" : "qemu/") + vmid);
+            guest.put("type", lxc ? "lxc" : "qemu");
+            guest.put("node", node(i));
+            guest.put("vmid", vmid);
+            guest.put("name", "jenkins-agent-" + vmid);
+            guest.put("status", running ? "running" : "stopped");
+            guest.put("template", i % 250 == 0 ? 1 : 0);
+            guest.put("cpu", running ? random.nextDouble() : 0);
+            guest.put("maxcpu", 4);
+            guest.put("mem", running ? random.nextInt(Integer.MAX_VALUE) : 0);
+            guest.put("maxmem", 8589934592L);
+            guest.put("disk", 0);
+            guest.put("maxdisk", 34359738368L);
+            guest.put("diskread", random.nextInt(Integer.MAX_VALUE));
+            guest.put("diskwrite", random.nextInt(Integer.MAX_VALUE));
+            guest.put("netin", random.nextInt(Integer.MAX_VALUE));
+            guest.put("netout", random.nextInt(Integer.MAX_VALUE));
+            guest.put("uptime", running ? random.nextInt(1000000) : 0);
+            guest.put("tags", "jenkins;ci");
+            data.put(guest);
+        }
+        return wrap(data);
+    }
+
+    static String upid(int i) {
+        return String.format("UPID:%s:%08X:%08X:%08X:qmstart:%d:root@pam:", node(0), 100000 + i, 0, 1700000000 + i, i);
+    }
+
+    /**
+     * @return the {@code nodes/{node}/tasks} listing, the newest first, with the newest tenth still running.
+     */
+    static String taskListing(int tasks) {
+        JSONArray data = new JSONArray();
+        for (int i = tasks - 1; i >= 0; i--) {
+            JSONObject task = new JSONObject();
+            task.put("upid", upid(i));
+            task.put("node", node(0));
+            task.put("pid", 100000 + i);
+            task.put("pstart", 0);
+            task.put("starttime", 1700000000 + i);
+            task.put("type", "qmstart");
+            task.put("id", String.valueOf(i));
+            task.put("user", "root@pam");
+            if (i < tasks - tasks / 10) {
+                task.put("endtime", 1700000005 + i);
+                task.put("status", "OK");
+            }
+            data.put(task);
+        }
+        return wrap(data);
+    }
+
+    /**
+     * @return the {@code nodes/{node}/tasks/{upid}/status} of a finished task.
+     */
+    static String taskStatus() {
+        JSONObject data = new JSONObject();
+        data.put("upid", upid(0));
+        data.put("node", node(0));
+        data.put("pid", 100000);
+        data.put("pstart", 0);
+        data.put("starttime", 1700000000);
+        data.put("type", "qmstart");
+        data.put("id", "100");
+        data.put("user", "root@pam");
+        data.put("status", "stopped");
+        data.put("exitstatus", "OK");
+        return wrap(data);
+    }
+
+    /**
+     * @return the response of a request which starts a task.
+     */
+    static String taskId() {
+        return new JSONObject().put("data", upid(0)).toString();
+    }
+
+    private static String wrap(Object data) {
+        return new JSONObject().put("data", data).toString();
+    }
+}
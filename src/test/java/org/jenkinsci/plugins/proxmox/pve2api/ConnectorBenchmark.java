@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import kong.unirest.HttpRequest;
+import kong.unirest.JsonNode;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestInstance;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request and response handling of {@link Connector} against {@link CannedResponses}: building the
+ * request, parsing the body the way unirest does, and reading the fields the plugin needs.
+ * Run by {@code BenchmarkRunner} with {@code mvn test -Dbenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectorBenchmark {
+
+    private static final String BASE_URL = "https://pve.example.com:8006/api2/json/";
+
+    @Param({"500", "5000"})
+    public int guests;
+
+    private String clusterResources;
+    private String taskListing;
+    private String taskStatus;
+    private String taskId;
+    private String watchedUpid;
+    private UnirestInstance unirest;
+
+    @Setup
+    public void setUp() {
+        clusterResources = CannedResponses.clusterResources(guests);
+        taskListing = CannedResponses.taskListing(Math.max(50, guests / 10));
+        taskStatus = CannedResponses.taskStatus();
+        taskId = CannedResponses.taskId();
+        watchedUpid = CannedResponses.upid(Math.max(50, guests / 10) - 1);
+        unirest = Unirest.spawnInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        unirest.close();
+    }
+
+    /**
+     * {@code cluster/resources}, as read by the cluster inventory and the startup reconciliation.
+     */
+    @Benchmark
+    public List<ClusterResource> parseClusterResources() throws IOException {
+        return Connector.parseClusterResources(new StringReader(clusterResources), 0);
+    }
+
+    /**
+     * The same listing read through a full JSON tree, as a baseline for the streaming parser.
+     */
+    @Benchmark
+    public int parseClusterResourcesAsTree() {
+        JSONArray resources = new JsonNode(clusterResources).getObject().getJSONArray("data");
+        int guests = 0;
+        for (int i = 0; i < resources.length(); i++) {
+            String type = resources.getJSONObject(i).optString("type");
+            if (type.equals("qemu") || type.equals("lxc")) {
+                guests++;
+            }
+        }
+        return guests;
+    }
+
+    /**
+     * A poll of the {@link TaskWatcher}: the task listing of a node, searched for one task.
+     */
+    @Benchmark
+    public JSONObject findTaskInListing() {
+        JSONArray tasks = new JsonNode(taskListing).getObject().getJSONArray("data");
+        for (int i = 0; i < tasks.length(); i++) {
+            JSONObject task = tasks.getJSONObject(i);
+            if (watchedUpid.equals(task.optString("upid")) && task.has("endtime")) {
+                return TaskWatcher.toTaskStatus(task);
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String readTaskExitStatus() {
+        return new JsonNode(taskStatus).getObject().getJSONObject("data").getString("exitstatus");
+    }
+
+    @Benchmark
+    public String readTaskId() {
+        return new JsonNode(taskId).getObject().getString("data");
+    }
+
+    /**
+     * The URL concatenation and request object of a guest status request, without sending it.
+     */
+    @Benchmark
+    public HttpRequest<?> buildStatusRequest() {
+        return unirest.get(BASE_URL + "nodes/" + "pve1" + "/" + GuestType.QEMU.getPath() + "/" + 4242
+                + "/status/current");
+    }
+
+    @Benchmark
+    public String endpointTemplate() {
+        return Connector.endpointTemplate(BASE_URL + "nodes/pve1/qemu/4242/snapshot/clean/rollback");
+    }
+}
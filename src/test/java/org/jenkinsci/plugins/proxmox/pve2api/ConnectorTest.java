@@ -0,0 +1,429 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ConnectorTest {
+
+    private ProxmoxSimulator simulator;
+    private Connector connector;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        simulator = new ProxmoxSimulator()
+                .addQemuMachine("pve1", 100, "agent-1")
+                .addSnapshot("pve1", 100, "clean", false)
+                .addSnapshot("pve1", 100, "warm", true);
+        connector = new Connector(simulator.getHostname(), "root", "pam", Secret.fromString(ProxmoxSimulator.PASSWORD));
+    }
+
+    @AfterEach
+    void tearDown() {
+        simulator.close();
+    }
+
+    @Test
+    void should_list_nodes_and_guests(JenkinsRule r) throws Exception {
+        connector.login();
+        assertThat(connector.getNodes(), contains("pve1"));
+        assertThat(connector.getQemuMachines("pve1").get("agent-1"), is(100));
+        assertThat(connector.getQemuMachineSnapshots("pve1", 100), contains("clean", "warm", "current"));
+    }
+
+    @Test
+    void should_read_only_the_wanted_fields_of_listings(JenkinsRule r) throws Exception {
+        String guests = "{\"data\":[{\"vmid\":100,\"name\":\"a\\\"b\\u00e9\",\"tags\":{\"x\":[1,\"]\"]}},"
+                + " {\"vmid\":\"101\",\"name\":null}, 42, {\"lock\":\"backup\",\"vmid\":102,\"name\":\"c\"}]}";
+        Map<String, Integer> res = Connector.parseGuests(new StringReader(guests));
+        assertThat(res.get("a\"b\u00e9"), is(100));
+        assertThat(res.get("101"), is(101));
+        assertThat(res.get("c"), is(102));
+        assertThat(res.size(), is(3));
+
+        assertThrows(IOException.class, () -> Connector.parseNodes(new StringReader("{\"data\":[{\"node\":\"pve1\"")));
+    }
+
+    @Test
+    void should_stream_cluster_resources_like_the_json_tree(JenkinsRule r) throws Exception {
+        String body = CannedResponses.clusterResources(200);
+        List<ClusterResource> resources = Connector.parseClusterResources(new StringReader(body), 0);
+
+        List<JSONObject> expected = new ArrayList<JSONObject>();
+        JSONArray data = new JSONObject(body).getJSONArray("data");
+        for (int i = 0; i < data.length(); i++) {
+            if (!data.getJSONObject(i).getString("type").equals("storage")) {
+                expected.add(data.getJSONObject(i));
+            }
+        }
+        assertThat(resources, hasSize(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            JSONObject entry = expected.get(i);
+            ClusterResource resource = resources.get(i);
+            assertThat(resource.getType(), is(entry.getString("type")));
+            assertThat(resource.getNode(), is(entry.getString("node")));
+            assertThat(resource.getStatus(), is(entry.getString("status")));
+            assertThat(resource.getName(), is(entry.optString("name", null)));
+            assertThat(resource.getVmid(), is(entry.has("vmid") ? entry.getInt("vmid") : null));
+            assertThat(resource.isTemplate(), is(entry.optInt("template") == 1));
+        }
+    }
+
+    @Test
+    void should_start_guest_and_wait_for_task(JenkinsRule r) throws Exception {
+        simulator.setTaskDuration("qmstart", 300);
+        String taskId = connector.startQemuMachine("pve1", 100);
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+
+        JSONObject status = connector.waitForTaskToFinish("pve1", taskId);
+        assertThat(status.getString("exitstatus"), is("OK"));
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(true));
+    }
+
+    @Test
+    void should_roll_back_to_snapshot(JenkinsRule r) throws Exception {
+        simulator.setRunning("pve1", 100, true);
+        String taskId = connector.rollbackGuestSnapshot("pve1", GuestType.QEMU, 100, "clean", false);
+        assertThat(connector.waitForTaskToFinish("pve1", taskId).getString("exitstatus"), is("OK"));
+        assertThat(simulator.getCurrentSnapshot("pve1", 100), is("clean"));
+        assertThat(simulator.isRunning("pve1", 100), is(false));
+
+        taskId = connector.rollbackGuestSnapshot("pve1", GuestType.QEMU, 100, "clean", true);
+        connector.waitForTaskToFinish("pve1", taskId);
+        assertThat(simulator.isRunning("pve1", 100), is(true));
+
+        assertThat(connector.getQemuMachineSnapshot("pve1", 100, "warm").optInt("vmstate"), is(1));
+        assertThat(connector.isRollbackStartSupported(), is(true));
+    }
+
+    @Test
+    void should_list_shared_storages(JenkinsRule r) throws Exception {
+        simulator.addStorage("local-lvm", false).addStorage("ceph", true).addStorage("nfs", true);
+        assertThat(connector.getSharedStorages(), contains("ceph", "nfs"));
+    }
+
+    @Test
+    void should_send_throttled_requests_by_priority(JenkinsRule r) throws Exception {
+        connector.login();
+        simulator.setLatency(300, 300);
+        connector.getRequestThrottle().configure(1, 0);
+
+        CompletableFuture<?> first = connector.getClusterResourcesAsync();
+        CompletableFuture<?> background = connector.getNodesAsync();
+        CompletableFuture<?> normal = connector.getGuestStatusAsync("pve1", GuestType.QEMU, 100);
+        CompletableFuture<?> critical = connector.getTasksAsync("pve1", 0, 50);
+        assertThat(connector.getRequestThrottle().getQueueDepth(), is(3));
+        assertThat(connector.getRequestThrottle().getQueueDepth(RequestPriority.BACKGROUND), is(2));
+        CompletableFuture.allOf(first, background, normal, critical).join();
+
+        List<String> order = new ArrayList<String>();
+        for (String request : simulator.getRequests()) {
+            if (request.contains("cluster/resources")) {
+                order.add("first");
+            } else if (request.contains("/tasks?")) {
+                order.add("critical");
+            } else if (request.contains("/status/current")) {
+                order.add("normal");
+            } else if (request.equals("GET nodes")) {
+                order.add("background");
+            }
+        }
+        assertThat(order, contains("first", "critical", "normal", "background"));
+        assertThat(connector.getRequestThrottle().getQueueDepth(), is(0));
+        assertThat(connector.getRequestThrottle().getMaxWaitMillis(), greaterThan(500.0));
+    }
+
+    @Test
+    void should_limit_the_request_rate(JenkinsRule r) throws Exception {
+        connector.login();
+        connector.getRequestThrottle().configure(0, 5);
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<?>> requests = new ArrayList<CompletableFuture<?>>();
+        for (int i = 0; i < 15; i++) {
+            requests.add(connector.getGuestStatusAsync("pve1", GuestType.QEMU, 100));
+        }
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).join();
+
+        // a burst of 5, then 5 per second
+        assertThat(System.currentTimeMillis() - start, greaterThan(1800L));
+        assertThat(connector.getRequestThrottle().getAverageWaitMillis(), greaterThan(0.0));
+    }
+
+    @Test
+    void should_suspend_and_resume_guest(JenkinsRule r) throws Exception {
+        simulator.setRunning("pve1", 100, true);
+        String taskId = connector.suspendGuest("pve1", GuestType.QEMU, 100, false);
+        assertThat(connector.waitForTaskToFinish("pve1", taskId).getString("exitstatus"), is("OK"));
+        assertThat(Connector.isSuspended(connector.getGuestStatus("pve1", GuestType.QEMU, 100)), is(true));
+        // listed as running, but it has to be resumed first
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+
+        taskId = connector.resumeGuest("pve1", GuestType.QEMU, 100);
+        connector.waitForTaskToFinish("pve1", taskId);
+        assertThat(Connector.isSuspended(connector.getGuestStatus("pve1", GuestType.QEMU, 100)), is(false));
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(true));
+        assertThat(simulator.isRunning("pve1", 100), is(true));
+
+        taskId = connector.suspendGuest("pve1", GuestType.QEMU, 100, true);
+        connector.waitForTaskToFinish("pve1", taskId);
+        assertThat(simulator.isHibernated("pve1", 100), is(true));
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        assertThat(Connector.isSuspended(connector.getGuestStatus("pve1", GuestType.QEMU, 100)), is(false));
+    }
+
+    @Test
+    void should_report_failed_task(JenkinsRule r) throws Exception {
+        simulator.failTasks("qmstart", "start failed: timeout");
+        String taskId = connector.startQemuMachine("pve1", 100);
+        assertThat(connector.waitForTaskToFinish("pve1", taskId).getString("exitstatus"), is("start failed: timeout"));
+        assertThat(simulator.isRunning("pve1", 100), is(false));
+    }
+
+    @Test
+    void should_stream_task_log_incrementally(JenkinsRule r) throws Exception {
+        simulator.setTaskDuration("qmstart", 2500).setTaskLogInterval(100);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        String taskId = connector.startQemuMachine("pve1", 100);
+        JSONObject status = connector.waitForTaskToFinish(
+                "pve1", taskId, new PrintStream(log, true, StandardCharsets.UTF_8.name()), true);
+
+        assertThat(status.getString("exitstatus"), is("OK"));
+        List<String> lines = Arrays.asList(log.toString(StandardCharsets.UTF_8.name()).split("\\R"));
+        assertThat(lines.get(0), is("starting qmstart on pve1"));
+        assertThat(lines.get(lines.size() - 1), is("TASK OK"));
+        assertThat(lines, hasSize(27));
+        // every poll continues after the lines it already has
+        List<String> logRequests = new ArrayList<String>();
+        for (String request : simulator.getRequests()) {
+            if (request.contains("/log?")) {
+                logRequests.add(request);
+            }
+        }
+        String firstPage = "start=0&limit=" + TaskLogFollower.PAGE_SIZE;
+        assertThat(logRequests.size(), greaterThan(1));
+        assertThat(logRequests.get(0), endsWith(firstPage));
+        assertThat(logRequests.get(logRequests.size() - 1), not(endsWith(firstPage)));
+    }
+
+    @Test
+    void should_skip_the_placeholder_of_an_empty_task_log(JenkinsRule r) throws Exception {
+        simulator.setTaskDuration("qmstart", 1500).setTaskLogInterval(100).setTaskLogDelay(800);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        String taskId = connector.startQemuMachine("pve1", 100);
+        JSONObject status = connector.waitForTaskToFinish(
+                "pve1", taskId, new PrintStream(log, true, StandardCharsets.UTF_8.name()), true);
+
+        assertThat(status.getString("exitstatus"), is("OK"));
+        List<String> lines = Arrays.asList(log.toString(StandardCharsets.UTF_8.name()).split("\\R"));
+        assertThat(lines.get(0), is("starting qmstart on pve1"));
+        assertThat(lines.get(lines.size() - 1), is("TASK OK"));
+        assertThat(lines, not(hasItem(TaskLogFollower.NO_CONTENT)));
+    }
+
+    @Test
+    void should_print_the_log_of_a_short_task_once(JenkinsRule r) throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        String taskId = connector.startQemuMachine("pve1", 100);
+        connector.waitForTaskToFinish("pve1", taskId, new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+
+        assertThat(log.toString(StandardCharsets.UTF_8.name()), containsString("TASK OK"));
+        assertThat(simulator.countRequests("/log\\?"), is(1));
+    }
+
+    @Test
+    void should_log_in_again_after_ticket_rejection(JenkinsRule r) throws Exception {
+        connector.login();
+        simulator.invalidateTickets();
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        assertThat(simulator.countRequests("^POST access/ticket"), is(2));
+    }
+
+    @Test
+    void should_fail_request_on_injected_error(JenkinsRule r) throws Exception {
+        connector.login();
+        simulator.injectErrors("status/current$", 500, 1);
+        assertThrows(RuntimeException.class, () -> connector.isQemuMachineRunning("pve1", 100));
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+    }
+
+    @Test
+    void should_retry_transient_errors_of_reads_only(JenkinsRule r) throws Exception {
+        connector.login();
+        simulator.injectErrors("status/current$", 503, 2);
+        assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        assertThat(simulator.countRequests("status/current$"), is(3));
+        assertThat(connector.getRetryCount(), is(2L));
+
+        simulator.injectErrors("status/start$", 503, 1);
+        assertThrows(RuntimeException.class, () -> connector.startQemuMachine("pve1", 100));
+        assertThat(simulator.countRequests("status/start$"), is(1));
+
+        simulator.injectErrors("qemu/100$", 503, 1);
+        assertThrows(RuntimeException.class, () -> connector.destroyQemuMachine("pve1", 100));
+        assertThat(simulator.countRequests("^DELETE .*qemu/100$"), is(1));
+        assertThat(simulator.hasGuest("pve1", 100), is(true));
+    }
+
+    @Test
+    void should_fail_fast_while_circuit_breaker_is_open(JenkinsRule r) throws Exception {
+        connector.login();
+        connector.setMaxRetries(0);
+        simulator.injectErrors("status/current$", 502, CircuitBreaker.FAILURE_THRESHOLD);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertThrows(RuntimeException.class, () -> connector.isQemuMachineRunning("pve1", 100));
+        }
+        assertThat(connector.getCircuitBreaker().getState(), is(CircuitBreaker.State.OPEN));
+
+        assertThrows(CircuitBreaker.OpenException.class, () -> connector.isQemuMachineRunning("pve1", 100));
+        assertThat(simulator.countRequests("status/current$"), is(CircuitBreaker.FAILURE_THRESHOLD));
+    }
+
+    @Test
+    void should_retry_a_timeout_while_a_streamed_body_is_read(JenkinsRule r) throws Exception {
+        connector.login();
+        connector.setTimeouts(1000, 200);
+        simulator.stallBodies("cluster/resources$", 1000, 1);
+        assertThat(connector.getClusterResources(), not(hasSize(0)));
+        assertThat(simulator.countRequests("cluster/resources$"), is(2));
+        assertThat(connector.getRetryCount(), is(1L));
+    }
+
+    @Test
+    void should_count_timeouts_of_streamed_bodies_against_the_circuit_breaker(JenkinsRule r) throws Exception {
+        connector.login();
+        connector.setMaxRetries(0);
+        connector.setTimeouts(1000, 200);
+        simulator.stallBodies("cluster/resources$", 1000, CircuitBreaker.FAILURE_THRESHOLD);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertThrows(RuntimeException.class, () -> connector.getClusterResources());
+        }
+        assertThat(connector.getCircuitBreaker().getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    void should_not_retry_a_malformed_streamed_body(JenkinsRule r) throws Exception {
+        Throwable malformed = new UncheckedIOException(new JsonListingReader.MalformedJsonException("expected ']'"));
+        assertThat(Connector.isTransientFailure(null, malformed), is(false));
+        Throwable timeout = new UncheckedIOException(new SocketTimeoutException("Read timed out"));
+        assertThat(Connector.isTransientFailure(null, timeout), is(true));
+    }
+
+    @Test
+    void should_spread_requests_over_endpoints(JenkinsRule r) throws Exception {
+        simulator.addEndpoint();
+        connector.setAdditionalEndpoints(List.of(simulator.getHostname(1)));
+        for (int i = 0; i < 40; i++) {
+            assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        }
+        assertThat(simulator.countRequests(0), greaterThan(5));
+        assertThat(simulator.countRequests(1), greaterThan(5));
+    }
+
+    @Test
+    void should_fail_over_to_another_endpoint(JenkinsRule r) throws Exception {
+        simulator.addEndpoint().stopEndpoint(0);
+        connector.setAdditionalEndpoints(List.of(simulator.getHostname(1)));
+        for (int i = 0; i < 20; i++) {
+            assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        }
+        EndpointPool.Endpoint stopped = connector.getEndpointPool().getEndpoints().get(0);
+        assertThat(stopped.isHealthy(System.currentTimeMillis()), is(false));
+        assertThat(simulator.countRequests(1), greaterThan(20));
+    }
+
+    @Test
+    void should_not_pause_an_endpoint_for_a_long_listing(JenkinsRule r) throws Exception {
+        simulator.addEndpoint();
+        connector.setAdditionalEndpoints(List.of(simulator.getHostname(1)));
+        for (int i = 0; i < 20; i++) {
+            assertThat(connector.isQemuMachineRunning("pve1", 100), is(false));
+        }
+        simulator.stallBodies("cluster/resources$", 6000, 1);
+        assertThat(connector.getClusterResources(), not(hasSize(0)));
+
+        long now = System.currentTimeMillis();
+        for (EndpointPool.Endpoint endpoint : connector.getEndpointPool().getEndpoints()) {
+            assertThat(endpoint.isHealthy(now), is(true));
+            assertThat(endpoint.getLatencyMillis(), lessThan(EndpointPool.SLOW_MIN_LATENCY_MS));
+        }
+    }
+
+    @Test
+    void should_discover_endpoints_from_cluster_status(JenkinsRule r) throws Exception {
+        simulator.addNode("pve2").setNodeAddress("pve2", "127.0.0.2");
+        connector.discoverEndpointsAsync().get();
+
+        int port = URI.create(simulator.getHostname()).getPort();
+        List<String> baseURLs = new ArrayList<String>();
+        for (EndpointPool.Endpoint endpoint : connector.getEndpointPool().getEndpoints()) {
+            baseURLs.add(endpoint.getBaseURL());
+        }
+        assertThat(
+                baseURLs,
+                hasItems(
+                        "http://127.0.0.1:" + port + "/api2/json/",
+                        "http://127.0.0.2:" + port + "/api2/json/"));
+    }
+
+    @Test
+    void should_poll_concurrent_tasks_with_one_listing_per_node(JenkinsRule r) throws Exception {
+        for (int vmid = 101; vmid <= 120; vmid++) {
+            simulator.addQemuMachine("pve1", vmid, "agent-" + vmid);
+        }
+        simulator.setTaskDuration("qmstart", 500).setLatency(5, 20);
+
+        List<CompletableFuture<JSONObject>> tasks = new ArrayList<CompletableFuture<JSONObject>>();
+        for (int vmid = 101; vmid <= 120; vmid++) {
+            tasks.add(connector.startQemuMachineAsync("pve1", vmid)
+                    .thenCompose(taskId -> connector.waitForTaskToFinishAsync("pve1", taskId)));
+        }
+        for (CompletableFuture<JSONObject> task : tasks) {
+            assertThat(task.get().getString("exitstatus"), is("OK"));
+        }
+        assertThat(simulator.countRequests("^GET nodes/pve1/tasks\\?"), greaterThan(0));
+        assertThat(simulator.countRequests("^GET nodes/pve1/tasks/UPID[^/]*/status"), is(0));
+    }
+
+    @Test
+    void should_keep_watching_a_task_while_the_task_listing_fails(JenkinsRule r) throws Exception {
+        simulator.setTaskDuration("qmstart", 3000);
+        String taskId = connector.startQemuMachine("pve1", 100);
+        simulator.injectErrors("nodes/pve1/tasks$", 500, 6);
+
+        assertThat(connector.waitForTaskToFinish("pve1", taskId).getString("exitstatus"), is("OK"));
+        assertThat(simulator.countRequests("^GET nodes/pve1/tasks\\?"), greaterThan(6));
+    }
+}
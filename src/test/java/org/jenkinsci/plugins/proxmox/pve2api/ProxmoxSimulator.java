@@ -0,0 +1,905 @@
+package org.jenkinsci.plugins.proxmox.pve2api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
+
+/**
+ * An in-process Proxmox VE API for tests, serving the {@code /api2/json} endpoints the plugin uses over plain
+ * HTTP on a free local port. Connect with {@code new Connector(simulator.getHostname(), "root", "pam", ...)}.
+ * <p>
+ * Guests change their state when their tasks finish. Tasks take a configurable time per task type and write
+ * a log line per log interval while they run. Latency, HTTP errors, stalled bodies and failed tasks can be
+ * injected.
+ * Further endpoints serve the same cluster on other ports, like the pveproxy of further nodes.
+ */
+public class ProxmoxSimulator implements AutoCloseable {
+
+    public static final String USERNAME = "root@pam";
+    public static final String PASSWORD = "secret";
+    public static final String VERSION = "8.2.4";
+
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+    private final List<AtomicInteger> endpointRequests = new ArrayList<AtomicInteger>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // node -> vmid -> guest
+    private final Map<String, Map<Integer, Guest>> nodes = new LinkedHashMap<String, Map<Integer, Guest>>();
+    private final Map<String, Task> tasks = new LinkedHashMap<String, Task>();
+    private final Map<String, String> nodeAddresses = new HashMap<String, String>();
+    private final Map<String, double[]> nodeLoads = new HashMap<String, double[]>();
+    private final Map<String, Boolean> storages = new LinkedHashMap<String, Boolean>();
+    private final Map<String, Long> taskDurations = new HashMap<String, Long>();
+    private final Map<String, String> taskFailures = new HashMap<String, String>();
+    private final List<InjectedError> errors = new ArrayList<InjectedError>();
+    private final List<InjectedError> stalledBodies = new ArrayList<InjectedError>();
+    private final Set<String> tickets = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> requests = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger taskCounter = new AtomicInteger();
+
+    private volatile long defaultTaskDurationMs = 50;
+    private volatile long taskLogIntervalMs = 100;
+    private volatile long taskLogDelayMs;
+    private volatile long minLatencyMs;
+    private volatile long maxLatencyMs;
+
+    public ProxmoxSimulator() throws IOException {
+        addEndpoint();
+    }
+
+    /**
+     * Serves the API on another port as well.
+     */
+    public synchronized ProxmoxSimulator addEndpoint() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        AtomicInteger served = new AtomicInteger();
+        server.createContext("/api2/json/", exchange -> {
+            served.incrementAndGet();
+            handle(exchange);
+        });
+        server.setExecutor(executor);
+        server.start();
+        servers.add(server);
+        endpointRequests.add(served);
+        return this;
+    }
+
+    /**
+     * @return the host for the {@link Connector}, with the {@code http://} scheme and the port.
+     */
+    public String getHostname() {
+        return getHostname(0);
+    }
+
+    public synchronized String getHostname(int endpoint) {
+        HttpServer server = servers.get(endpoint);
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Closes the port of an endpoint, so connections to it are refused.
+     */
+    public synchronized ProxmoxSimulator stopEndpoint(int endpoint) {
+        servers.get(endpoint).stop(0);
+        return this;
+    }
+
+    /**
+     * @return how many requests the endpoint received.
+     */
+    public synchronized int countRequests(int endpoint) {
+        return endpointRequests.get(endpoint).get();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        executor.shutdownNow();
+    }
+
+    public synchronized ProxmoxSimulator addNode(String node) {
+        nodes.computeIfAbsent(node, n -> new LinkedHashMap<Integer, Guest>());
+        return this;
+    }
+
+    public synchronized ProxmoxSimulator addGuest(String node, GuestType type, int vmid, String name) {
+        addNode(node);
+        nodes.get(node).put(vmid, new Guest(type, vmid, name));
+        return this;
+    }
+
+    public ProxmoxSimulator addQemuMachine(String node, int vmid, String name) {
+        return addGuest(node, GuestType.QEMU, vmid, name);
+    }
+
+    /**
+     * @param withRamState if the snapshot includes the RAM, so a rollback resumes the running guest.
+     */
+    public synchronized ProxmoxSimulator addSnapshot(String node, int vmid, String snapshot, boolean withRamState) {
+        guest(node, vmid).snapshots.put(snapshot, withRamState);
+        return this;
+    }
+
+    public synchronized ProxmoxSimulator addStorage(String storage, boolean shared) {
+        storages.put(storage, shared);
+        return this;
+    }
+
+    public synchronized ProxmoxSimulator setRunning(String node, int vmid, boolean running) {
+        guest(node, vmid).running = running;
+        return this;
+    }
+
+    public synchronized boolean isRunning(String node, int vmid) {
+        return guest(node, vmid).running;
+    }
+
+    /**
+     * @return true if the guest is suspended to RAM.
+     */
+    public synchronized boolean isPaused(String node, int vmid) {
+        return guest(node, vmid).paused;
+    }
+
+    /**
+     * @return true if the guest is suspended to disk and not started since.
+     */
+    public synchronized boolean isHibernated(String node, int vmid) {
+        return guest(node, vmid).hibernated;
+    }
+
+    public synchronized String getCurrentSnapshot(String node, int vmid) {
+        return guest(node, vmid).parent;
+    }
+
+    public synchronized boolean hasGuest(String node, int vmid) {
+        return nodes.containsKey(node) && nodes.get(node).containsKey(vmid);
+    }
+
+    /**
+     * @return the address the QEMU guest agent of a running guest reports, derived from its id.
+     */
+    public static String getGuestAddress(int vmid) {
+        return "10.0." + (vmid >> 8 & 255) + "." + (vmid & 255);
+    }
+
+    /**
+     * @return the content of a file written through the QEMU guest agent, or null.
+     */
+    public synchronized String getGuestFile(String node, int vmid, String file) {
+        return guest(node, vmid).files.get(file);
+    }
+
+    /**
+     * @param address the address of the node in {@code cluster/status}, {@code 127.0.0.1} by default.
+     */
+    public synchronized ProxmoxSimulator setNodeAddress(String node, String address) {
+        addNode(node);
+        nodeAddresses.put(node, address);
+        return this;
+    }
+
+    public synchronized ProxmoxSimulator setNodeLoad(String node, double cpu, double memory, double ioWait) {
+        nodeLoads.put(node, new double[] {cpu, memory, ioWait});
+        return this;
+    }
+
+    /**
+     * @param type the task type, e.g. {@code qmstart} or {@code qmrollback}.
+     */
+    public synchronized ProxmoxSimulator setTaskDuration(String type, long durationMs) {
+        taskDurations.put(type, durationMs);
+        return this;
+    }
+
+    public ProxmoxSimulator setDefaultTaskDuration(long durationMs) {
+        this.defaultTaskDurationMs = durationMs;
+        return this;
+    }
+
+    /**
+     * Running tasks write a line to their log every interval.
+     */
+    public ProxmoxSimulator setTaskLogInterval(long intervalMs) {
+        this.taskLogIntervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Running tasks have an empty log until the delay has passed.
+     */
+    public ProxmoxSimulator setTaskLogDelay(long delayMs) {
+        this.taskLogDelayMs = delayMs;
+        return this;
+    }
+
+    /**
+     * Tasks of the type finish with the exit status instead of {@code OK}, without changing the guest.
+     */
+    public synchronized ProxmoxSimulator failTasks(String type, String exitStatus) {
+        taskFailures.put(type, exitStatus);
+        return this;
+    }
+
+    /**
+     * Every request is delayed by a random time between the bounds.
+     */
+    public ProxmoxSimulator setLatency(long minMs, long maxMs) {
+        this.minLatencyMs = minMs;
+        this.maxLatencyMs = Math.max(minMs, maxMs);
+        return this;
+    }
+
+    /**
+     * The next {@code count} requests whose path below {@code /api2/json/} matches the pattern fail with the
+     * HTTP status.
+     */
+    public synchronized ProxmoxSimulator injectErrors(String pathPattern, int status, int count) {
+        errors.add(new InjectedError(Pattern.compile(pathPattern), status, count));
+        return this;
+    }
+
+    /**
+     * The next {@code count} successful responses to requests whose path matches the pattern stop for the
+     * given time after the first half of their body, like a connection which hangs while the body is read.
+     */
+    public synchronized ProxmoxSimulator stallBodies(String pathPattern, long stallMs, int count) {
+        stalledBodies.add(new InjectedError(Pattern.compile(pathPattern), (int) stallMs, count));
+        return this;
+    }
+
+    /**
+     * Invalidates all authentication tickets, as a change of the cluster's auth key does.
+     */
+    public ProxmoxSimulator invalidateTickets() {
+        tickets.clear();
+        return this;
+    }
+
+    /**
+     * @return the requests served so far, as {@code METHOD path?query}.
+     */
+    public List<String> getRequests() {
+        return new ArrayList<String>(requests);
+    }
+
+    /**
+     * @return how many requests were made whose {@code METHOD path} matches the pattern.
+     */
+    public int countRequests(String pattern) {
+        Pattern compiled = Pattern.compile(pattern);
+        int count = 0;
+        for (String request : requests) {
+            if (compiled.matcher(request).find()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Guest guest(String node, int vmid) {
+        Map<Integer, Guest> guests = nodes.get(node);
+        Guest guest = guests == null ? null : guests.get(vmid);
+        if (guest == null) {
+            throw new IllegalArgumentException("No guest " + vmid + " on node " + node);
+        }
+        return guest;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring("/api2/json/".length());
+            String method = exchange.getRequestMethod();
+            Map<String, String> parameters = parseForm(exchange.getRequestURI().getRawQuery());
+            try (InputStream body = exchange.getRequestBody()) {
+                parameters.putAll(parseForm(new String(body.readAllBytes(), StandardCharsets.UTF_8)));
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            requests.add(method + " " + path + (query == null ? "" : "?" + query));
+
+            long latency = maxLatencyMs > 0 ? ThreadLocalRandom.current().nextLong(minLatencyMs, maxLatencyMs + 1) : 0;
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            Integer injected = takeInjectedError(path);
+            if (injected != null) {
+                respond(exchange, injected, null);
+                return;
+            }
+            if (method.equals("POST") && path.equals("access/ticket")) {
+                login(exchange, parameters);
+                return;
+            }
+            if (!isAuthenticated(exchange)) {
+                respond(exchange, 401, null);
+                return;
+            }
+            Object data;
+            synchronized (this) {
+                data = route(method, path.split("/"), parameters);
+            }
+            if (data instanceof Integer) {
+                respond(exchange, (Integer) data, null);
+            } else {
+                Integer stallMs = takeInjected(stalledBodies, path);
+                respond(exchange, 200, data, stallMs == null ? 0 : stallMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Integer takeInjectedError(String path) {
+        return takeInjected(errors, path);
+    }
+
+    /**
+     * @return the status, or the stall time, of the first injection which matches the path and is not used up.
+     */
+    private synchronized Integer takeInjected(List<InjectedError> injections, String path) {
+        for (InjectedError error : injections) {
+            if (error.remaining > 0 && error.pattern.matcher(path).find()) {
+                error.remaining--;
+                return error.status;
+            }
+        }
+        return null;
+    }
+
+    private void login(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        if (!USERNAME.equals(parameters.get("username")) || !PASSWORD.equals(parameters.get("password"))) {
+            respond(exchange, 401, null);
+            return;
+        }
+        String ticket = "PVE:" + USERNAME + ":" + UUID.randomUUID();
+        tickets.add(ticket);
+        JSONObject data = new JSONObject();
+        data.put("ticket", ticket);
+        data.put("CSRFPreventionToken", UUID.randomUUID().toString());
+        data.put("username", USERNAME);
+        respond(exchange, 200, data);
+    }
+
+    private boolean isAuthenticated(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith("PVEAPIToken=")) {
+            return true;
+        }
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        return cookie != null
+                && cookie.startsWith("PVEAuthCookie=")
+                && tickets.contains(cookie.substring("PVEAuthCookie=".length()));
+    }
+
+    /**
+     * @return the data of the response, or an Integer with the HTTP status of an error.
+     */
+    private Object route(String method, String[] path, Map<String, String> parameters) {
+        finishDueTasks();
+        if (path.length == 1 && path[0].equals("version")) {
+            JSONObject version = new JSONObject();
+            version.put("version", VERSION);
+            version.put("release", VERSION.substring(0, VERSION.lastIndexOf('.')));
+            return version;
+        }
+        if (path.length == 1 && path[0].equals("nodes")) {
+            JSONArray res = new JSONArray();
+            for (String node : nodes.keySet()) {
+                JSONObject entry = new JSONObject();
+                entry.put("node", node);
+                entry.put("status", "online");
+                res.put(entry);
+            }
+            return res;
+        }
+        if (path.length == 1 && path[0].equals("storage")) {
+            JSONArray res = new JSONArray();
+            for (Map.Entry<String, Boolean> storage : storages.entrySet()) {
+                JSONObject entry = new JSONObject();
+                entry.put("storage", storage.getKey());
+                if (storage.getValue()) {
+                    entry.put("shared", 1);
+                }
+                res.put(entry);
+            }
+            return res;
+        }
+        if (path.length == 2 && path[0].equals("cluster") && path[1].equals("resources")) {
+            return clusterResources();
+        }
+        if (path.length == 2 && path[0].equals("cluster") && path[1].equals("status")) {
+            return clusterStatus();
+        }
+        if (path.length == 2 && path[0].equals("cluster") && path[1].equals("nextid")) {
+            int vmid = 100;
+            while (isUsedVmId(vmid)) {
+                vmid++;
+            }
+            return String.valueOf(vmid);
+        }
+        if (path.length < 3 || !path[0].equals("nodes") || !nodes.containsKey(path[1])) {
+            return 404;
+        }
+        String node = path[1];
+        if (path.length == 3 && path[2].equals("status")) {
+            double[] load = nodeLoads.getOrDefault(node, new double[3]);
+            JSONObject memory = new JSONObject();
+            memory.put("total", 1000);
+            memory.put("used", (long) (load[1] * 1000));
+            JSONObject status = new JSONObject();
+            status.put("cpu", load[0]);
+            status.put("memory", memory);
+            status.put("wait", load[2]);
+            return status;
+        }
+        if (path[2].equals("tasks")) {
+            return routeTasks(node, path, parameters);
+        }
+        GuestType type = path[2].equals("qemu") ? GuestType.QEMU : path[2].equals("lxc") ? GuestType.LXC : null;
+        if (type == null) {
+            return 404;
+        }
+        if (path.length == 3) {
+            JSONArray res = new JSONArray();
+            for (Guest guest : nodes.get(node).values()) {
+                if (guest.type == type) {
+                    res.put(guest.toJSON());
+                }
+            }
+            return res;
+        }
+        Guest guest = nodes.get(node).get(Integer.valueOf(path[3]));
+        if (guest == null || guest.type != type) {
+            return 500;
+        }
+        return routeGuest(method, node, guest, path, parameters);
+    }
+
+    private boolean isUsedVmId(int vmid) {
+        for (Map<Integer, Guest> guests : nodes.values()) {
+            if (guests.containsKey(vmid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object routeGuest(String method, String node, Guest guest, String[] path, Map<String, String> parameters) {
+        String prefix = guest.type == GuestType.QEMU ? "qm" : "vz";
+        if (path.length == 4 && method.equals("DELETE")) {
+            return startTask(node, prefix + "destroy", guest, () -> {
+                if (guest.running) {
+                    return "VM " + guest.vmid + " is running - destroy failed";
+                }
+                nodes.get(node).remove(guest.vmid);
+                return "OK";
+            });
+        }
+        if (path.length == 5 && path[4].equals("clone") && method.equals("POST")) {
+            int newid = Integer.parseInt(parameters.get("newid"));
+            if (isUsedVmId(newid)) {
+                return 500;
+            }
+            // like Proxmox, the clone exists right away, locked until the task finishes
+            nodes.get(node).put(newid, new Guest(guest.type, newid, parameters.get("name")));
+            return startTask(node, prefix + "clone", guest, () -> "OK");
+        }
+        if (path.length == 6 && path[4].equals("status") && path[5].equals("current")) {
+            return guest.toJSON();
+        }
+        if (path.length == 6 && path[4].equals("status") && method.equals("POST")) {
+            String command = path[5];
+            if (command.equals("suspend") || command.equals("resume")) {
+                boolean toDisk = "1".equals(parameters.get("todisk"));
+                return startTask(node, prefix + command, guest, () -> {
+                    if (!guest.running) {
+                        return "VM " + guest.vmid + " not running";
+                    }
+                    guest.paused = command.equals("suspend") && !toDisk;
+                    if (toDisk) {
+                        guest.running = false;
+                        guest.hibernated = true;
+                    }
+                    return "OK";
+                });
+            }
+            if (!command.equals("start") && !command.equals("stop") && !command.equals("shutdown")) {
+                return 501;
+            }
+            return startTask(node, prefix + command, guest, () -> {
+                if (command.equals("start") && guest.running) {
+                    return "VM " + guest.vmid + " already running";
+                }
+                guest.running = command.equals("start");
+                guest.paused = false;
+                guest.hibernated = false;
+                return "OK";
+            });
+        }
+        if (path.length == 5 && path[4].equals("snapshot")) {
+            JSONArray res = new JSONArray();
+            for (Map.Entry<String, Boolean> snapshot : guest.snapshots.entrySet()) {
+                JSONObject entry = new JSONObject();
+                entry.put("name", snapshot.getKey());
+                if (snapshot.getValue()) {
+                    entry.put("vmstate", 1);
+                }
+                res.put(entry);
+            }
+            JSONObject current = new JSONObject();
+            current.put("name", "current");
+            current.put("running", guest.running ? 1 : 0);
+            if (guest.parent != null) {
+                current.put("parent", guest.parent);
+            }
+            res.put(current);
+            return res;
+        }
+        if (path.length == 7 && path[4].equals("snapshot") && path[6].equals("rollback") && method.equals("POST")) {
+            String snapshot = path[5];
+            if (!guest.snapshots.containsKey(snapshot)) {
+                return 500;
+            }
+            boolean start = "1".equals(parameters.get("start"));
+            return startTask(node, prefix + "rollback", guest, () -> {
+                guest.parent = snapshot;
+                guest.running = guest.snapshots.get(snapshot) || start;
+                return "OK";
+            });
+        }
+        if (path.length == 6 && path[4].equals("agent") && path[5].equals("ping") && method.equals("POST")) {
+            return guest.running ? new JSONObject() : (Object) 500;
+        }
+        if (path.length == 6 && path[4].equals("agent") && path[5].equals("network-get-interfaces")) {
+            if (!guest.running) {
+                return 500;
+            }
+            JSONObject loopback = new JSONObject();
+            loopback.put("name", "lo");
+            loopback.put("ip-addresses", new JSONArray().put(address("ipv4", "127.0.0.1")));
+            JSONObject ethernet = new JSONObject();
+            ethernet.put("name", "eth0");
+            ethernet.put(
+                    "ip-addresses",
+                    new JSONArray().put(address("ipv6", "fe80::1")).put(address("ipv4", getGuestAddress(guest.vmid))));
+            JSONObject res = new JSONObject();
+            res.put("result", new JSONArray().put(loopback).put(ethernet));
+            return res;
+        }
+        if (path.length == 6 && path[4].equals("agent") && path[5].equals("file-write") && method.equals("POST")) {
+            if (!guest.running) {
+                return 500;
+            }
+            guest.files.put(parameters.get("file"), parameters.get("content"));
+            return null;
+        }
+        if (path.length == 5 && path[4].equals("config") && (method.equals("PUT") || method.equals("POST"))) {
+            if (parameters.containsKey("description")) {
+                guest.description = parameters.get("description");
+            }
+            return null;
+        }
+        if (path.length == 5 && path[4].equals("config")) {
+            JSONObject config = new JSONObject();
+            config.put("name", guest.name);
+            config.put(guest.type == GuestType.QEMU ? "scsi0" : "rootfs", "local-lvm:vm-" + guest.vmid + "-disk-0");
+            return config;
+        }
+        return 501;
+    }
+
+    private static JSONObject address(String type, String address) {
+        JSONObject res = new JSONObject();
+        res.put("ip-address-type", type);
+        res.put("ip-address", address);
+        return res;
+    }
+
+    private Object routeTasks(String node, String[] path, Map<String, String> parameters) {
+        if (path.length == 3) {
+            long since = Long.parseLong(parameters.getOrDefault("since", "0"));
+            int limit = Integer.parseInt(parameters.getOrDefault("limit", "50"));
+            List<Task> nodeTasks = new ArrayList<Task>();
+            for (Task task : tasks.values()) {
+                if (task.node.equals(node) && task.startTime >= since) {
+                    nodeTasks.add(task);
+                }
+            }
+            // the newest first, as Proxmox lists them
+            JSONArray res = new JSONArray();
+            for (int i = nodeTasks.size() - 1; i >= 0 && res.length() < limit; i--) {
+                res.put(nodeTasks.get(i).toListEntry());
+            }
+            return res;
+        }
+        Task task = tasks.get(path[3]);
+        if (task == null || !task.node.equals(node)) {
+            return 500;
+        }
+        if (path.length == 5 && path[4].equals("status")) {
+            return task.toStatus();
+        }
+        if (path.length == 5 && path[4].equals("log")) {
+            int start = Integer.parseInt(parameters.getOrDefault("start", "0"));
+            int limit = Integer.parseInt(parameters.getOrDefault("limit", "50"));
+            JSONArray res = new JSONArray();
+            List<String> log = task.getLog(System.currentTimeMillis());
+            for (int i = start; i < log.size() && i < start + limit; i++) {
+                JSONObject line = new JSONObject();
+                line.put("n", i + 1);
+                line.put("t", log.get(i));
+                res.put(line);
+            }
+            if (res.length() == 0) {
+                // like Proxmox, a page without lines has a placeholder line
+                JSONObject line = new JSONObject();
+                line.put("n", 1);
+                line.put("t", "no content");
+                res.put(line);
+            }
+            return res;
+        }
+        return 501;
+    }
+
+    private JSONArray clusterStatus() {
+        JSONArray res = new JSONArray();
+        JSONObject cluster = new JSONObject();
+        cluster.put("type", "cluster");
+        cluster.put("name", "simulator");
+        cluster.put("nodes", nodes.size());
+        cluster.put("quorate", 1);
+        res.put(cluster);
+        int nodeid = 1;
+        for (String node : nodes.keySet()) {
+            JSONObject entry = new JSONObject();
+            entry.put("type", "node");
+            entry.put("name", node);
+            entry.put("nodeid", nodeid++);
+            entry.put("online", 1);
+            entry.put("ip", nodeAddresses.getOrDefault(node, "127.0.0.1"));
+            res.put(entry);
+        }
+        return res;
+    }
+
+    private JSONArray clusterResources() {
+        JSONArray res = new JSONArray();
+        for (Map.Entry<String, Map<Integer, Guest>> node : nodes.entrySet()) {
+            JSONObject entry = new JSONObject();
+            entry.put("type", "node");
+            entry.put("node", node.getKey());
+            entry.put("status", "online");
+            res.put(entry);
+            for (Guest guest : node.getValue().values()) {
+                JSONObject guestEntry = guest.toJSON();
+                guestEntry.put("type", guest.type.getPath());
+                guestEntry.put("node", node.getKey());
+                guestEntry.put("id", guest.type.getPath() + "/" + guest.vmid);
+                res.put(guestEntry);
+            }
+        }
+        return res;
+    }
+
+    private String startTask(String node, String type, Guest guest, TaskEffect effect) {
+        long now = System.currentTimeMillis();
+        String upid = String.format(
+                "UPID:%s:%08X:%08X:%08X:%s:%d:%s:",
+                node, taskCounter.incrementAndGet(), 0, now / 1000, type, guest.vmid, USERNAME);
+        long duration = taskDurations.getOrDefault(type, defaultTaskDurationMs);
+        Task task = new Task(upid, node, type, now / 1000, now + duration, effect, taskFailures.get(type));
+        task.startedAt = now;
+        task.logIntervalMs = taskLogIntervalMs;
+        task.logDelayMs = taskLogDelayMs;
+        tasks.put(upid, task);
+        finishDueTasks();
+        return upid;
+    }
+
+    private void finishDueTasks() {
+        long now = System.currentTimeMillis();
+        for (Task task : tasks.values()) {
+            if (task.exitStatus == null && task.finishAt <= now) {
+                task.exitStatus = task.failure != null ? task.failure : task.effect.apply();
+                task.endTime = Math.max(task.startTime, now / 1000);
+            }
+        }
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> res = new HashMap<String, String>();
+        if (form == null || form.isEmpty()) {
+            return res;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                res.put(
+                        URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return res;
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object data) throws IOException {
+        try {
+            respond(exchange, status, data, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object data, long stallMs)
+            throws IOException, InterruptedException {
+        JSONObject body = new JSONObject();
+        body.put("data", data == null ? JSONObject.NULL : data);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (stallMs > 0) {
+                out.write(bytes, 0, bytes.length / 2);
+                out.flush();
+                Thread.sleep(stallMs);
+                out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+            } else {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private interface TaskEffect {
+        /**
+         * Changes the guest as the finished task does.
+         * @return the exit status of the task.
+         */
+        String apply();
+    }
+
+    private static final class Guest {
+        final GuestType type;
+        final int vmid;
+        final String name;
+        final Map<String, Boolean> snapshots = new LinkedHashMap<String, Boolean>();
+        final Map<String, String> files = new HashMap<String, String>();
+        String description;
+        boolean running;
+        boolean paused;
+        boolean hibernated;
+        String parent;
+
+        Guest(GuestType type, int vmid, String name) {
+            this.type = type;
+            this.vmid = vmid;
+            this.name = name;
+        }
+
+        JSONObject toJSON() {
+            JSONObject res = new JSONObject();
+            res.put("vmid", vmid);
+            res.put("name", name);
+            res.put("status", running ? "running" : "stopped");
+            if (type == GuestType.QEMU) {
+                res.put("qmpstatus", paused ? "paused" : running ? "running" : "stopped");
+            }
+            if (hibernated) {
+                res.put("lock", "suspended");
+            }
+            return res;
+        }
+    }
+
+    private static final class Task {
+        final String upid;
+        final String node;
+        final String type;
+        final long startTime;
+        final long finishAt;
+        final TaskEffect effect;
+        final String failure;
+        String exitStatus;
+        long endTime;
+        long startedAt;
+        long logIntervalMs;
+        long logDelayMs;
+
+        Task(String upid, String node, String type, long startTime, long finishAt, TaskEffect effect, String failure) {
+            this.upid = upid;
+            this.node = node;
+            this.type = type;
+            this.startTime = startTime;
+            this.finishAt = finishAt;
+            this.effect = effect;
+            this.failure = failure;
+        }
+
+        /**
+         * @return a line per log interval the task has run, and the result once it is finished.
+         */
+        List<String> getLog(long now) {
+            List<String> log = new ArrayList<String>();
+            if (exitStatus == null && now < startedAt + logDelayMs) {
+                return log;
+            }
+            log.add("starting " + type + " on " + node);
+            long end = Math.min(now, finishAt);
+            for (long i = 1; logIntervalMs > 0 && startedAt + i * logIntervalMs <= end; i++) {
+                log.add("progress " + (i * logIntervalMs * 100 / Math.max(1, finishAt - startedAt)) + "%");
+            }
+            if (exitStatus != null) {
+                log.add(exitStatus.equals("OK") ? "TASK OK" : "TASK ERROR: " + exitStatus);
+            }
+            return log;
+        }
+
+        JSONObject toListEntry() {
+            JSONObject res = new JSONObject();
+            res.put("upid", upid);
+            res.put("node", node);
+            res.put("type", type);
+            res.put("starttime", startTime);
+            if (exitStatus != null) {
+                res.put("endtime", endTime);
+                res.put("status", exitStatus);
+            }
+            return res;
+        }
+
+        JSONObject toStatus() {
+            JSONObject res = new JSONObject();
+            res.put("upid", upid);
+            res.put("node", node);
+            res.put("type", type);
+            res.put("starttime", startTime);
+            res.put("status", exitStatus == null ? "running" : "stopped");
+            if (exitStatus != null) {
+                res.put("exitstatus", exitStatus);
+            }
+            return res;
+        }
+    }
+
+    private static final class InjectedError {
+        final Pattern pattern;
+        // the HTTP status, or the stall time of a stalled body
+        final int status;
+        int remaining;
+
+        InjectedError(Pattern pattern, int status, int count) {
+            this.pattern = pattern;
+            this.status = status;
+            this.remaining = count;
+        }
+    }
+}